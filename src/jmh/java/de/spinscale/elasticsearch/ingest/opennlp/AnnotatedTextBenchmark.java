@@ -0,0 +1,71 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import opennlp.tools.util.Span;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the annotated text of documents with an entity in every sentence, so that the time per sentence can be compared
+ * between document sizes. The annotated text is created in a single pass, so eight times the sentences should take about
+ * eight times as long, and not 64 times as long
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AnnotatedTextBenchmark {
+
+    @Param({ "1000", "10000", "80000" })
+    public int sentences;
+
+    private String content;
+    private List<ExtractedEntities> entities;
+
+    @Setup
+    public void setup() {
+        content = "Munich is nice. ".repeat(sentences);
+        int[] tokenOffsets = OffsetTokenizer.simple(content, Integer.MAX_VALUE);
+        Span[] spans = new Span[sentences];
+        for (int i = 0; i < sentences; i++) {
+            spans[i] = new Span(i * 4, i * 4 + 1, "location");
+        }
+        entities = Collections.singletonList(new ExtractedEntities(content, tokenOffsets, spans));
+    }
+
+    @Benchmark
+    public String createAnnotatedText() {
+        return OpenNlpService.createAnnotatedText(content, entities);
+    }
+}
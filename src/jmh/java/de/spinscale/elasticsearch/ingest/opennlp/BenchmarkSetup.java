@@ -0,0 +1,78 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import org.elasticsearch.common.settings.Settings;
+
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Documents and services shared by all benchmarks. The models are the ones fetched by the downloadModels task
+ */
+final class BenchmarkSetup {
+
+    static final List<String> MODELS = List.of("persons", "locations", "dates");
+
+    private static final String TEXT = "Kobe Bryant was one of the best basketball players of all times. Not even Michael Jordan " +
+            "has ever scored 81 points in one game. Munich is really an awesome city, but New York is as well. Yesterday " +
+            "has been the hottest day of the year. ";
+
+    private BenchmarkSetup() {}
+
+    /**
+     * Creates a short (a single sentence), medium (about 2kb) or long (about 50kb) document
+     */
+    static String document(String size) {
+        return switch (size) {
+            case "short" -> TEXT.substring(0, TEXT.indexOf('.') + 1);
+            case "medium" -> TEXT.repeat(10);
+            case "long" -> TEXT.repeat(250);
+            default -> throw new IllegalArgumentException("unknown document size [" + size + "]");
+        };
+    }
+
+    /**
+     * Starts a service with the first models
+     */
+    static OpenNlpService service(int models) {
+        return service(models, false);
+    }
+
+    /**
+     * Starts a service with the first models, which are optionally compiled into primitive arrays when reading them
+     */
+    static OpenNlpService service(int models, boolean compileOnLoad) {
+        return service(models, Settings.builder().put("ingest.opennlp.model.compile_on_load", compileOnLoad));
+    }
+
+    /**
+     * Starts a service with the first models and a result cache, so that repeated documents only assemble the result
+     */
+    static OpenNlpService cachingService(int models) {
+        return service(models, Settings.builder().put("ingest.opennlp.cache.size", "10mb"));
+    }
+
+    private static OpenNlpService service(int models, Settings.Builder settings) {
+        for (String model : MODELS.subList(0, models)) {
+            settings.put("ingest.opennlp.model.file." + model, "en-ner-" + model + ".bin");
+        }
+        String directory = System.getProperty("tests.models", "src/test/resources/models");
+        return new OpenNlpService(Paths.get(directory), settings.build()).start();
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import opennlp.tools.util.Span;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the work done after the models found their entities: collecting the entity values and creating the annotated
+ * text. The entities are found once during setup, so that the models are not part of the measurement
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExtractedEntitiesBenchmark {
+
+    @Param({ "short", "medium", "long" })
+    public String document;
+
+    @Param({ "1", "3" })
+    public int models;
+
+    private String content;
+    private Collection<ExtractedEntities> entities;
+    private int[] tokenOffsets;
+    private Span[] spans;
+
+    @Setup
+    public void setup() throws IOException {
+        content = BenchmarkSetup.document(document);
+        try (OpenNlpService service = BenchmarkSetup.service(models)) {
+            entities = service.find(content, BenchmarkSetup.MODELS.subList(0, models), AnalysisOptions.DEFAULT).values();
+        }
+        ExtractedEntities first = entities.iterator().next();
+        tokenOffsets = first.getTokenOffsets();
+        spans = first.getSpans();
+    }
+
+    @Benchmark
+    public List<String> extractedEntities() {
+        return new ExtractedEntities(content, tokenOffsets, spans).getEntityValues();
+    }
+
+    @Benchmark
+    public String createAnnotatedText() {
+        return OpenNlpService.createAnnotatedText(content, entities);
+    }
+}
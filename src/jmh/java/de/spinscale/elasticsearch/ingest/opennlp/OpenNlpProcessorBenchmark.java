@@ -0,0 +1,109 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.ingest.IngestDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the processor end to end, including reading the source field and writing the entities and the annotated text.
+ * Creating the ingest document is part of the measurement, as the processor modifies it. The cached variant serves the
+ * entities from the result cache, so it measures assembling the result only, run it with {@code -Pjmh.profilers=gc} to see
+ * the bytes allocated per document
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class OpenNlpProcessorBenchmark {
+
+    @Param({ "short", "medium", "long" })
+    public String document;
+
+    @Param({ "1", "3" })
+    public int models;
+
+    private OpenNlpService service;
+    private OpenNlpProcessor processor;
+    private OpenNlpService cachingService;
+    private OpenNlpProcessor cachedProcessor;
+    private String content;
+
+    @Setup
+    public void setup() {
+        service = BenchmarkSetup.service(models);
+        content = BenchmarkSetup.document(document);
+        processor = new OpenNlpProcessor(service, "benchmark", List.of("content"), "entities", "annotated_text",
+                null, false, null, new HashSet<>(BenchmarkSetup.MODELS.subList(0, models)), AnalysisOptions.DEFAULT, null, null);
+        cachingService = BenchmarkSetup.cachingService(models);
+        cachedProcessor = new OpenNlpProcessor(cachingService, "benchmark", List.of("content"), "entities", null,
+                null, false, null, new HashSet<>(BenchmarkSetup.MODELS.subList(0, models)), AnalysisOptions.DEFAULT, null, null);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        service.close();
+        cachingService.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public IngestDocument execute() throws Exception {
+        return processor.execute(ingestDocument());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public IngestDocument executeConcurrently() throws Exception {
+        return processor.execute(ingestDocument());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public IngestDocument executeCached() throws Exception {
+        return cachedProcessor.execute(ingestDocument());
+    }
+
+    private IngestDocument ingestDocument() {
+        Map<String, Object> source = new HashMap<>();
+        source.put("content", content);
+        return new IngestDocument("my-index", "my-id", 1L, null, VersionType.INTERNAL, source);
+    }
+}
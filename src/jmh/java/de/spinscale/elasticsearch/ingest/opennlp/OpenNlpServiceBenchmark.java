@@ -0,0 +1,87 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs all configured models over a document, once on a single thread and once on all available processors, with the
+ * models as read by OpenNLP and compiled into primitive arrays
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class OpenNlpServiceBenchmark {
+
+    @Param({ "short", "medium", "long" })
+    public String document;
+
+    @Param({ "1", "3" })
+    public int models;
+
+    @Param({ "false", "true" })
+    public boolean compileOnLoad;
+
+    private OpenNlpService service;
+    private String content;
+    private List<String> fields;
+
+    @Setup
+    public void setup() {
+        service = BenchmarkSetup.service(models, compileOnLoad);
+        content = BenchmarkSetup.document(document);
+        fields = BenchmarkSetup.MODELS.subList(0, models);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        service.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Map<String, ExtractedEntities> find() {
+        return service.find(content, fields, AnalysisOptions.DEFAULT);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Map<String, ExtractedEntities> findConcurrently() {
+        return service.find(content, fields, AnalysisOptions.DEFAULT);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import opennlp.tools.tokenize.SimpleTokenizer;
+import opennlp.tools.util.Span;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares tokenizing a document with the SimpleTokenizer of OpenNLP, which creates a span and a string per token, to the
+ * offsets created by the plugin, with and without the strings the name finders need
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TokenizerBenchmark {
+
+    @Param({ "short", "medium", "long" })
+    public String document;
+
+    private String content;
+
+    @Setup
+    public void setup() {
+        content = BenchmarkSetup.document(document);
+    }
+
+    @Benchmark
+    public String[] simpleTokenizer() {
+        Span[] tokenOffsets = SimpleTokenizer.INSTANCE.tokenizePos(content);
+        return Span.spansToStrings(tokenOffsets, content);
+    }
+
+    @Benchmark
+    public int[] offsetTokenizer() {
+        return OffsetTokenizer.simple(content, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public String[] offsetTokenizerWithTokens() {
+        return OffsetTokenizer.tokens(content, OffsetTokenizer.simple(content, Integer.MAX_VALUE));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import org.elasticsearch.core.TimeValue;
+
+import java.util.Objects;
+
+/**
+ * Per processor options, that limit how much of a document gets analysed and how the tokens are split before
+ * running the name finders
+ */
+final class AnalysisOptions {
+
+    static final AnalysisOptions DEFAULT = new AnalysisOptions(Integer.MAX_VALUE, Integer.MAX_VALUE, 0, 0, TimeValue.ZERO,
+            OffsetTokenizer.SIMPLE);
+
+    private final int maxContentLength;
+    private final int maxTokens;
+    private final int windowSize;
+    private final int windowOverlap;
+    private final TimeValue timeBudget;
+    private final String tokenizer;
+
+    /**
+     * @param maxContentLength  only the first characters of the content are analysed
+     * @param maxTokens         only the first tokens of the content are analysed
+     * @param windowSize        the maximum number of tokens handed to a name finder at once, 0 to disable windowing
+     * @param windowOverlap     the number of tokens consecutive windows have in common
+     * @param timeBudget        the time after which no further models or segments are run for a document, 0 for no limit
+     * @param tokenizer         splits the content into tokens, one of {@link OffsetTokenizer#NAMES}
+     */
+    AnalysisOptions(int maxContentLength, int maxTokens, int windowSize, int windowOverlap, TimeValue timeBudget,
+                    String tokenizer) {
+        this.maxContentLength = maxContentLength;
+        this.maxTokens = maxTokens;
+        this.windowSize = windowSize;
+        this.windowOverlap = windowOverlap;
+        this.timeBudget = timeBudget;
+        this.tokenizer = tokenizer;
+    }
+
+    int getMaxContentLength() {
+        return maxContentLength;
+    }
+
+    int getMaxTokens() {
+        return maxTokens;
+    }
+
+    int getWindowSize() {
+        return windowSize;
+    }
+
+    int getWindowOverlap() {
+        return windowOverlap;
+    }
+
+    TimeValue getTimeBudget() {
+        return timeBudget;
+    }
+
+    String getTokenizer() {
+        return tokenizer;
+    }
+
+    boolean isWindowed() {
+        return windowSize > 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        AnalysisOptions that = (AnalysisOptions) o;
+        return maxContentLength == that.maxContentLength && maxTokens == that.maxTokens && windowSize == that.windowSize
+                && windowOverlap == that.windowOverlap && timeBudget.equals(that.timeBudget) && tokenizer.equals(that.tokenizer);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(maxContentLength, maxTokens, windowSize, windowOverlap, timeBudget, tokenizer);
+    }
+}
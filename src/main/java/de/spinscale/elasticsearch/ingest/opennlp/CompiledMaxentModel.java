@@ -0,0 +1,123 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import opennlp.tools.ml.maxent.GISModel;
+import opennlp.tools.ml.model.Context;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * A maxent model, that evaluates from a few flat primitive arrays instead of the hash map of boxed contexts of a
+ * {@link GISModel}. The parameters of all predicates are stored one after another, so that evaluating a context only
+ * reads consecutive array elements and does not allocate anything, if the caller passes in the array of probabilities.
+ * The parameters are kept as doubles, so that the probabilities are exactly the same as the ones of the original model.
+ * This is the heap counterpart of {@link MappedMaxentModel}.
+ */
+class CompiledMaxentModel extends PrimitiveMaxentModel implements Accountable {
+
+    private static final long BASE_RAM_BYTES = RamUsageEstimator.shallowSizeOfInstance(CompiledMaxentModel.class);
+
+    // open addressing hash table of predicate ids + 1, 0 marks an empty slot
+    private final int[] table;
+    private final int tableMask;
+    private final String[] predicates;
+    private final int[] predicateHashes;
+    // the parameters of predicate i are parameterOutcomes/parameters[parameterOffsets[i]] to [parameterOffsets[i + 1]]
+    private final int[] parameterOffsets;
+    private final int[] parameterOutcomes;
+    private final double[] parameters;
+
+    private CompiledMaxentModel(String[] outcomes, int[] table, String[] predicates, int[] predicateHashes,
+                                int[] parameterOffsets, int[] parameterOutcomes, double[] parameters) {
+        super(outcomes);
+        this.table = table;
+        this.tableMask = table.length - 1;
+        this.predicates = predicates;
+        this.predicateHashes = predicateHashes;
+        this.parameterOffsets = parameterOffsets;
+        this.parameterOutcomes = parameterOutcomes;
+        this.parameters = parameters;
+    }
+
+    /**
+     * Copies the parameters of a maxent model into primitive arrays, the original model is not needed afterwards
+     */
+    static CompiledMaxentModel compile(GISModel model) {
+        PredicateContexts data = predicateContexts(model);
+        String[] predicates = data.predicates();
+        Context[] contexts = data.contexts();
+
+        int[] table = new int[tableSize(predicates.length)];
+        int[] predicateHashes = new int[predicates.length];
+        for (int i = 0; i < predicates.length; i++) {
+            predicateHashes[i] = predicates[i].hashCode();
+            int slot = slot(predicateHashes[i], table.length - 1);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & (table.length - 1);
+            }
+            table[slot] = i + 1;
+        }
+
+        int[] parameterOffsets = new int[predicates.length + 1];
+        int[] parameterOutcomes = new int[data.numParameters()];
+        double[] parameters = new double[data.numParameters()];
+        int offset = 0;
+        for (int i = 0; i < contexts.length; i++) {
+            parameterOffsets[i] = offset;
+            int[] contextOutcomes = contexts[i].getOutcomes();
+            System.arraycopy(contextOutcomes, 0, parameterOutcomes, offset, contextOutcomes.length);
+            System.arraycopy(contexts[i].getParameters(), 0, parameters, offset, contextOutcomes.length);
+            offset += contextOutcomes.length;
+        }
+        parameterOffsets[predicates.length] = offset;
+
+        return new CompiledMaxentModel(data.outcomes(), table, predicates, predicateHashes, parameterOffsets, parameterOutcomes,
+                parameters);
+    }
+
+    @Override
+    int predicate(String name) {
+        int hash = name.hashCode();
+        for (int slot = slot(hash, tableMask); ; slot = (slot + 1) & tableMask) {
+            int predicate = table[slot] - 1;
+            if (predicate < 0) {
+                return -1;
+            }
+            if (predicateHashes[predicate] == hash && predicates[predicate].equals(name)) {
+                return predicate;
+            }
+        }
+    }
+
+    @Override
+    void addParameters(int predicate, double value, double[] probs) {
+        for (int pi = parameterOffsets[predicate], end = parameterOffsets[predicate + 1]; pi < end; pi++) {
+            probs[parameterOutcomes[pi]] += parameters[pi] * value;
+        }
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        long bytes = BASE_RAM_BYTES + RamUsageEstimator.sizeOf(outcomes()) + RamUsageEstimator.sizeOf(table);
+        bytes += RamUsageEstimator.sizeOf(predicates) + RamUsageEstimator.sizeOf(predicateHashes);
+        bytes += RamUsageEstimator.sizeOf(parameterOffsets) + RamUsageEstimator.sizeOf(parameterOutcomes);
+        return bytes + RamUsageEstimator.sizeOf(parameters);
+    }
+}
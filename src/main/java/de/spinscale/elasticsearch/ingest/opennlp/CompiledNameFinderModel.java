@@ -0,0 +1,55 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import opennlp.tools.ml.maxent.GISModel;
+import opennlp.tools.namefind.TokenNameFinderModel;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A name finder model, whose maxent model is replaced by a {@link CompiledMaxentModel} right after reading it. The name
+ * finders created from it find exactly the same entities, but evaluate the model from primitive arrays. Models of other
+ * types, like perceptron models, are kept as they are.
+ */
+class CompiledNameFinderModel extends TokenNameFinderModel {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean compiled;
+
+    CompiledNameFinderModel(InputStream in) throws IOException {
+        super(in);
+        if (artifactMap.get(MappedNameFinderModel.PARAMETERS_ENTRY) instanceof GISModel model) {
+            // nothing references the original model afterwards, so its boxed parameters can be garbage collected
+            artifactMap.put(MappedNameFinderModel.PARAMETERS_ENTRY, CompiledMaxentModel.compile(model));
+            compiled = true;
+        } else {
+            compiled = false;
+        }
+    }
+
+    /**
+     * Whether the maxent model has been compiled, false if the model was not a maxent model
+     */
+    boolean isCompiled() {
+        return compiled;
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import opennlp.tools.namefind.NameFinderME;
+import opennlp.tools.namefind.TokenNameFinder;
+import opennlp.tools.tokenize.SimpleTokenizer;
+import opennlp.tools.util.Span;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the entries of a term list in the tokens of a document. The entries are tokenized like the documents, and compiled
+ * into an Aho-Corasick automaton over token ids, so that all entries are found in a single pass over the tokens, no
+ * matter how many entries there are. Overlapping matches are resolved in favour of the leftmost longest one.
+ *
+ * The automaton is stored in a few flat int arrays, using a couple of dozen bytes per distinct token and per trie node,
+ * so that lists with millions of entries fit into the heap. This finder does not keep any state between calls and can
+ * be shared between threads.
+ */
+class DictionaryNameFinder implements TokenNameFinder, Accountable {
+
+    private static final int ROOT = 0;
+
+    private final String type;
+    private final int entries;
+
+    // the distinct tokens of all entries, the chars of token i are chars[tokenOffsets[i]] to chars[tokenOffsets[i + 1]]
+    private final char[] chars;
+    private final int[] tokenOffsets;
+    private final int[] tokenHashes;
+    // open addressing hash table of token ids + 1, 0 marks an empty slot
+    private final int[] tokenTable;
+
+    // the transitions of state s are transitionTokens/Targets[firstTransition[s]] to [firstTransition[s + 1]], sorted by token
+    private final int[] firstTransition;
+    private final int[] transitionTokens;
+    private final int[] transitionTargets;
+    private final int[] failure;
+    // the number of tokens of the entry ending in a state, 0 if no entry ends there
+    private final int[] entryLength;
+    // the next state along the failure links, in which an entry ends, or -1
+    private final int[] output;
+
+    private DictionaryNameFinder(String type, int entries, char[] chars, int[] tokenOffsets, int[] tokenHashes, int[] tokenTable,
+                                 int[] firstTransition, int[] transitionTokens, int[] transitionTargets, int[] failure,
+                                 int[] entryLength, int[] output) {
+        this.type = type;
+        this.entries = entries;
+        this.chars = chars;
+        this.tokenOffsets = tokenOffsets;
+        this.tokenHashes = tokenHashes;
+        this.tokenTable = tokenTable;
+        this.firstTransition = firstTransition;
+        this.transitionTokens = transitionTokens;
+        this.transitionTargets = transitionTargets;
+        this.failure = failure;
+        this.entryLength = entryLength;
+        this.output = output;
+    }
+
+    /**
+     * Reads a term list with one entry per line. Empty lines and lines starting with {@code #} are skipped
+     */
+    static DictionaryNameFinder load(Path path, String type) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.strip();
+                if (line.isEmpty() == false && line.startsWith("#") == false) {
+                    lines.add(line);
+                }
+            }
+        }
+        return build(lines, type);
+    }
+
+    static DictionaryNameFinder build(List<String> lines, String type) {
+        // map every distinct token to an id, and every entry to its token ids
+        Map<String, Integer> ids = new HashMap<>();
+        List<int[]> entries = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            String[] tokens = SimpleTokenizer.INSTANCE.tokenize(line);
+            if (tokens.length == 0) {
+                continue;
+            }
+            int[] entry = new int[tokens.length];
+            for (int i = 0; i < tokens.length; i++) {
+                entry[i] = ids.computeIfAbsent(tokens[i], token -> ids.size());
+            }
+            entries.add(entry);
+        }
+
+        String[] vocabulary = new String[ids.size()];
+        for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+            vocabulary[entry.getValue()] = entry.getKey();
+        }
+        int charCount = 0;
+        for (String token : vocabulary) {
+            charCount += token.length();
+        }
+        char[] chars = new char[charCount];
+        int[] tokenOffsets = new int[vocabulary.length + 1];
+        int[] tokenHashes = new int[vocabulary.length];
+        int[] tokenTable = new int[tableSize(vocabulary.length)];
+        for (int id = 0; id < vocabulary.length; id++) {
+            String token = vocabulary[id];
+            token.getChars(0, token.length(), chars, tokenOffsets[id]);
+            tokenOffsets[id + 1] = tokenOffsets[id] + token.length();
+            tokenHashes[id] = token.hashCode();
+            int slot = mix(tokenHashes[id]) & (tokenTable.length - 1);
+            while (tokenTable[slot] != 0) {
+                slot = (slot + 1) & (tokenTable.length - 1);
+            }
+            tokenTable[slot] = id + 1;
+        }
+
+        // in sorted order all entries sharing a prefix are next to each other, so the trie is built by only comparing each
+        // entry to the previous one. The children of every state are created in the order of their tokens
+        entries.sort(Arrays::compare);
+        IntList edgeParents = new IntList();
+        IntList edgeTokens = new IntList();
+        IntList lengths = new IntList();
+        lengths.add(0);
+        int[] path = new int[1];
+        int[] previous = new int[0];
+        int distinct = 0;
+        for (int[] entry : entries) {
+            if (path.length < entry.length + 1) {
+                path = Arrays.copyOf(path, entry.length + 1);
+            }
+            int common = Arrays.mismatch(previous, entry);
+            if (common < 0) {
+                // duplicate entry
+                continue;
+            }
+            for (int i = common; i < entry.length; i++) {
+                int state = lengths.size();
+                lengths.add(0);
+                edgeParents.add(path[i]);
+                edgeTokens.add(entry[i]);
+                path[i + 1] = state;
+            }
+            lengths.set(path[entry.length], entry.length);
+            previous = entry;
+            distinct++;
+        }
+
+        int states = lengths.size();
+        int[] entryLength = lengths.toArray();
+        // group the edges by their parent, keeping the order of the tokens. The target of edge e is state e + 1
+        int[] firstTransition = new int[states + 1];
+        for (int e = 0; e < edgeParents.size(); e++) {
+            firstTransition[edgeParents.get(e) + 1]++;
+        }
+        for (int s = 0; s < states; s++) {
+            firstTransition[s + 1] += firstTransition[s];
+        }
+        int[] next = Arrays.copyOf(firstTransition, states);
+        int[] transitionTokens = new int[edgeParents.size()];
+        int[] transitionTargets = new int[edgeParents.size()];
+        for (int e = 0; e < edgeParents.size(); e++) {
+            int position = next[edgeParents.get(e)]++;
+            transitionTokens[position] = edgeTokens.get(e);
+            transitionTargets[position] = e + 1;
+        }
+
+        DictionaryNameFinder finder = new DictionaryNameFinder(type, distinct, chars, tokenOffsets, tokenHashes, tokenTable,
+                firstTransition, transitionTokens, transitionTargets, new int[states], entryLength, new int[states]);
+        finder.computeFailureLinks();
+        return finder;
+    }
+
+    // breadth first, so that the failure links of all shorter paths are known already
+    private void computeFailureLinks() {
+        int[] queue = new int[failure.length];
+        int head = 0;
+        int tail = 0;
+        failure[ROOT] = ROOT;
+        output[ROOT] = -1;
+        queue[tail++] = ROOT;
+        while (head < tail) {
+            int state = queue[head++];
+            for (int t = firstTransition[state]; t < firstTransition[state + 1]; t++) {
+                int token = transitionTokens[t];
+                int child = transitionTargets[t];
+                int fallback = ROOT;
+                if (state != ROOT) {
+                    for (int f = failure[state]; ; f = failure[f]) {
+                        int target = transition(f, token);
+                        if (target >= 0) {
+                            fallback = target;
+                            break;
+                        }
+                        if (f == ROOT) {
+                            break;
+                        }
+                    }
+                }
+                failure[child] = fallback;
+                output[child] = entryLength[fallback] > 0 ? fallback : output[fallback];
+                queue[tail++] = child;
+            }
+        }
+    }
+
+    @Override
+    public Span[] find(String[] tokens) {
+        List<Span> matches = null;
+        int state = ROOT;
+        for (int i = 0; i < tokens.length; i++) {
+            int token = tokenId(tokens[i]);
+            if (token < 0) {
+                // no entry contains this token, so no match can continue over it
+                state = ROOT;
+                continue;
+            }
+
+            int target = transition(state, token);
+            while (target < 0 && state != ROOT) {
+                state = failure[state];
+                target = transition(state, token);
+            }
+            state = target < 0 ? ROOT : target;
+
+            for (int match = entryLength[state] > 0 ? state : output[state]; match >= 0; match = output[match]) {
+                if (matches == null) {
+                    matches = new ArrayList<>();
+                }
+                matches.add(new Span(i + 1 - entryLength[match], i + 1, type, 1.0));
+            }
+        }
+
+        if (matches == null) {
+            return new Span[0];
+        }
+        return NameFinderME.dropOverlappingSpans(matches.toArray(new Span[0]));
+    }
+
+    @Override
+    public void clearAdaptiveData() {
+        // nothing is kept between documents
+    }
+
+    private int transition(int state, int token) {
+        int index = Arrays.binarySearch(transitionTokens, firstTransition[state], firstTransition[state + 1], token);
+        return index < 0 ? -1 : transitionTargets[index];
+    }
+
+    private int tokenId(String token) {
+        int hash = token.hashCode();
+        for (int slot = mix(hash) & (tokenTable.length - 1); tokenTable[slot] != 0; slot = (slot + 1) & (tokenTable.length - 1)) {
+            int id = tokenTable[slot] - 1;
+            if (tokenHashes[id] == hash && equals(id, token)) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    private boolean equals(int id, String token) {
+        int start = tokenOffsets[id];
+        if (tokenOffsets[id + 1] - start != token.length()) {
+            return false;
+        }
+        for (int i = 0; i < token.length(); i++) {
+            if (chars[start + i] != token.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int getEntryCount() {
+        return entries;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return RamUsageEstimator.sizeOf(chars) + RamUsageEstimator.sizeOf(tokenOffsets) + RamUsageEstimator.sizeOf(tokenHashes)
+                + RamUsageEstimator.sizeOf(tokenTable) + RamUsageEstimator.sizeOf(firstTransition)
+                + RamUsageEstimator.sizeOf(transitionTokens) + RamUsageEstimator.sizeOf(transitionTargets)
+                + RamUsageEstimator.sizeOf(failure) + RamUsageEstimator.sizeOf(entryLength) + RamUsageEstimator.sizeOf(output);
+    }
+
+    // keeps the table at most half full
+    private static int tableSize(int count) {
+        return Integer.highestOneBit(Math.max(1, count) * 2) << 1;
+    }
+
+    // spreads the bits of the string hash, as the table uses the lowest bits only
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * A growable list of ints, to build the trie without boxing every state and edge
+     */
+    private static final class IntList {
+
+        private int[] values = new int[16];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        void set(int index, int value) {
+            values[index] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
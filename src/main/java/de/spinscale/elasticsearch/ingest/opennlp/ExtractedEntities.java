@@ -18,35 +18,129 @@
 package de.spinscale.elasticsearch.ingest.opennlp;
 
 import opennlp.tools.util.Span;
-import org.elasticsearch.common.util.set.Sets;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Helper class to contain the extracted spans/tokens of a field
  */
-class ExtractedEntities {
+class ExtractedEntities implements Accountable {
 
-    private final String[] tokens;
+    private static final long SPAN_BYTES = RamUsageEstimator.shallowSizeOfInstance(Span.class);
+
+    private final int[] tokenOffsets;
     private final Span[] spans;
-    private final HashSet<String> entities;
+    private final List<String> entities;
+    private final boolean truncated;
+
+    ExtractedEntities(String content, int[] tokenOffsets, Span[] spans) {
+        this(content, tokenOffsets, spans, false);
+    }
+
+    ExtractedEntities(String content, int[] tokenOffsets, Span[] spans, boolean truncated) {
+        this(content, tokenOffsets, spans, truncated, false);
+    }
 
-    ExtractedEntities(String[] tokens, Span[] spans) {
-        this.tokens = tokens;
+    /**
+     * @param content       the content the tokens were created from, which is not kept
+     * @param tokenOffsets  the start and end offset of each token one after another, see {@link OffsetTokenizer}
+     * @param truncated     whether the time budget of the document ran out, so that some models or segments were skipped
+     * @param verbatim      whether the values are the text the entities span, instead of their tokens joined by spaces
+     */
+    ExtractedEntities(String content, int[] tokenOffsets, Span[] spans, boolean truncated, boolean verbatim) {
+        this.tokenOffsets = tokenOffsets;
         this.spans = spans;
-        this.entities = Sets.newHashSet(Span.spansToStrings(spans, tokens));
+        this.entities = entityValues(content, tokenOffsets, spans, verbatim);
+        this.truncated = truncated;
+    }
+
+    /**
+     * Joins the tokens of each entity with a single space, the same as {@link Span#spansToStrings(Span[], String[])} does,
+     * but without creating the strings of the tokens first. Verbatim values are the content from the start of the first
+     * to the end of the last token instead. The distinct values are sorted, which removes duplicates without a hash set
+     * and keeps the order the same for the same content
+     */
+    private static List<String> entityValues(String content, int[] tokenOffsets, Span[] spans, boolean verbatim) {
+        if (spans.length == 0) {
+            return Collections.emptyList();
+        }
+
+        String[] values = new String[spans.length];
+        StringBuilder builder = null;
+        for (int i = 0; i < spans.length; i++) {
+            Span span = spans[i];
+            int first = span.getStart();
+            if (span.getEnd() - first == 1 || verbatim) {
+                int last = span.getEnd() - 1;
+                values[i] = content.substring(OffsetTokenizer.start(tokenOffsets, first), OffsetTokenizer.end(tokenOffsets, last));
+                continue;
+            }
+
+            if (builder == null) {
+                builder = new StringBuilder();
+            }
+            builder.setLength(0);
+            for (int token = first; token < span.getEnd(); token++) {
+                if (token > first) {
+                    builder.append(' ');
+                }
+                builder.append(content, OffsetTokenizer.start(tokenOffsets, token), OffsetTokenizer.end(tokenOffsets, token));
+            }
+            values[i] = builder.toString();
+        }
+
+        Arrays.sort(values);
+        int distinct = 1;
+        for (int i = 1; i < values.length; i++) {
+            if (values[i].equals(values[distinct - 1]) == false) {
+                values[distinct++] = values[i];
+            }
+        }
+        // the values are shared by all documents with the same content, if cached, so they must not be modified
+        return Collections.unmodifiableList(Arrays.asList(distinct == values.length ? values : Arrays.copyOf(values, distinct)));
     }
 
-    Set<String> getEntityValues() {
+    /**
+     * The distinct values of the entities in sorted order
+     */
+    List<String> getEntityValues() {
         return entities;
     }
 
-    String[] getTokens() {
-        return tokens;
+    int getTokenCount() {
+        return OffsetTokenizer.count(tokenOffsets);
+    }
+
+    /**
+     * The start and end offset of each token in the original content, shared by all entities of a document
+     */
+    int[] getTokenOffsets() {
+        return tokenOffsets;
     }
 
     Span[] getSpans() {
         return spans;
     }
+
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * An estimation of the heap used, which includes the token offsets, even though they are shared with the entities of the
+     * other models of the same document
+     */
+    @Override
+    public long ramBytesUsed() {
+        long bytes = RamUsageEstimator.sizeOf(tokenOffsets);
+        bytes += RamUsageEstimator.shallowSizeOf(spans) + spans.length * SPAN_BYTES;
+        for (String entity : entities) {
+            bytes += RamUsageEstimator.sizeOf(entity);
+        }
+        return bytes;
+    }
 }
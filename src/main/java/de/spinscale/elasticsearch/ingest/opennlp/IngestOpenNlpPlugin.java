@@ -17,36 +17,229 @@
 
 package de.spinscale.elasticsearch.ingest.opennlp;
 
+import org.elasticsearch.client.internal.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.routing.allocation.decider.AllocationDeciders;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.core.IOUtils;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
 import org.elasticsearch.ingest.Processor;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.IngestPlugin;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.repositories.RepositoriesService;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.tracing.Tracer;
+import org.elasticsearch.watcher.FileChangesListener;
+import org.elasticsearch.watcher.FileWatcher;
+import org.elasticsearch.watcher.ResourceWatcherService;
+import org.elasticsearch.xcontent.NamedXContentRegistry;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
-public class IngestOpenNlpPlugin extends Plugin implements IngestPlugin {
+public class IngestOpenNlpPlugin extends Plugin implements ActionPlugin, IngestPlugin {
 
     static final String NAME = "ingest-opennlp";
+    static final String THREAD_POOL_NAME = "ingest_opennlp";
 
     static final Setting.AffixSetting<String> MODEL_FILE_SETTINGS =
             Setting.prefixKeySetting("ingest.opennlp.model.file.", key -> Setting.simpleString(key, Property.NodeScope));
 
+    // term lists matched exactly against the tokens, one entry per line
+    static final Setting.AffixSetting<String> DICTIONARY_FILE_SETTINGS =
+            Setting.prefixKeySetting("ingest.opennlp.dictionary.file.", key -> Setting.simpleString(key, Property.NodeScope));
+
+    // regular expressions matched against the content, one expression per line
+    static final Setting.AffixSetting<String> PATTERN_FILE_SETTINGS =
+            Setting.prefixKeySetting("ingest.opennlp.pattern.file.", key -> Setting.simpleString(key, Property.NodeScope));
+
+    // skip a model for documents without a token starting with an upper case letter and consisting of letters only
+    static final Setting.AffixSetting<Boolean> FILTER_CAPITALIZED_SETTING = Setting.affixKeySetting("ingest.opennlp.filter.",
+            "capitalized", key -> Setting.boolSetting(key, false, Property.NodeScope));
+
+    // skip a model for documents with less tokens
+    static final Setting.AffixSetting<Integer> FILTER_MIN_TOKENS_SETTING = Setting.affixKeySetting("ingest.opennlp.filter.",
+            "min_tokens", key -> Setting.intSetting(key, 0, 0, Property.NodeScope));
+
+    // skip a model for documents, in which less than this share of the token chars are letters
+    static final Setting.AffixSetting<Double> FILTER_MIN_LETTER_RATIO_SETTING = Setting.affixKeySetting("ingest.opennlp.filter.",
+            "min_letter_ratio", key -> Setting.doubleSetting(key, 0, 0, 1, Property.NodeScope));
+
+    // only run a model for documents in one of these languages, models without languages run for all documents
+    static final Setting.AffixSetting<List<String>> FILTER_LANGUAGES_SETTING = Setting.affixKeySetting("ingest.opennlp.filter.",
+            "languages", key -> Setting.stringListSetting(key, Property.NodeScope));
+
+    // detects the language of documents, whose language is not known from a field
+    static final Setting<String> LANGUAGE_MODEL_FILE_SETTING =
+            Setting.simpleString("ingest.opennlp.language.model.file", Property.NodeScope);
+
+    // the language is detected from the beginning of a document only, which is enough and keeps detection cheap
+    static final Setting<Integer> LANGUAGE_MAX_CONTENT_LENGTH_SETTING =
+            Setting.intSetting("ingest.opennlp.language.max_content_length", 1000, 1, Property.NodeScope);
+
+    static final Setting<String> SENTENCE_MODEL_FILE_SETTING =
+            Setting.simpleString("ingest.opennlp.sentence.model.file", Property.NodeScope);
+
+    // splits the content into tokens for processors configured with the model tokenizer
+    static final Setting<String> TOKENIZER_MODEL_FILE_SETTING =
+            Setting.simpleString("ingest.opennlp.tokenizer.model.file", Property.NodeScope);
+
+    // the number of threads used to run the models for a single large document in parallel, 0 disables parallel processing
+    static final Setting<Integer> PARALLEL_THREADS_SETTING =
+            Setting.intSetting("ingest.opennlp.parallel.threads", 0, 0, Property.NodeScope);
+
+    // documents shorter than this are always processed on the calling thread, as handing them over costs more than it saves
+    static final Setting<Integer> PARALLEL_MIN_CONTENT_LENGTH_SETTING =
+            Setting.intSetting("ingest.opennlp.parallel.min_content_length", 10_000, 0, Property.NodeScope);
+
+    // the heap used to cache the extracted entities of already seen content, 0 disables the cache
+    static final Setting<ByteSizeValue> CACHE_SIZE_SETTING =
+            Setting.memorySizeSetting("ingest.opennlp.cache.size", "0b", Property.NodeScope);
+
+    // cache entries not accessed within this time are evicted, 0 keeps them until the cache is full
+    static final Setting<TimeValue> CACHE_EXPIRE_SETTING =
+            Setting.positiveTimeSetting("ingest.opennlp.cache.expire", TimeValue.ZERO, Property.NodeScope);
+
+    // watch the model files and reload them when they change
+    static final Setting<Boolean> MODEL_RELOAD_SETTING =
+            Setting.boolSetting("ingest.opennlp.model.reload", true, Property.NodeScope);
+
+    // the number of threads reading the models in parallel on startup
+    static final Setting<Integer> MODEL_LOADING_THREADS_SETTING =
+            Setting.intSetting("ingest.opennlp.model.loading.threads", 4, 1, Property.NodeScope);
+
+    // read the models when they are used for the first time instead of on startup
+    static final Setting<Boolean> MODEL_LAZY_LOADING_SETTING =
+            Setting.boolSetting("ingest.opennlp.model.loading.lazy", false, Property.NodeScope);
+
+    // run the processors on the plugin thread pool instead of the write threads, sized by ingest.opennlp.thread_pool.size
+    // and ingest.opennlp.thread_pool.queue_size
+    static final Setting<Boolean> THREAD_POOL_ENABLED_SETTING =
+            Setting.boolSetting("ingest.opennlp.thread_pool.enabled", false, Property.NodeScope);
+
+    // replace the maxent models by primitive arrays when reading them, which find the same entities faster
+    static final Setting<Boolean> MODEL_COMPILE_ON_LOAD_SETTING =
+            Setting.boolSetting("ingest.opennlp.model.compile_on_load", false, Property.NodeScope);
+
+    // run a corpus through all loaded models after startup, so that they are compiled by the JIT before the first documents arrive
+    static final Setting<Boolean> WARMUP_ENABLED_SETTING =
+            Setting.boolSetting("ingest.opennlp.warmup.enabled", false, Property.NodeScope);
+
+    // the documents to warm up with, one per line, a synthetic corpus is used if not set
+    static final Setting<String> WARMUP_CORPUS_FILE_SETTING =
+            Setting.simpleString("ingest.opennlp.warmup.corpus.file", Property.NodeScope);
+
+    // warm-up stops after this time, even if not all documents have been processed
+    static final Setting<TimeValue> WARMUP_TIME_LIMIT_SETTING =
+            Setting.positiveTimeSetting("ingest.opennlp.warmup.time_limit", TimeValue.timeValueSeconds(30), Property.NodeScope);
+
+    // the number of documents to process, the corpus is repeated until it is reached
+    static final Setting<Integer> WARMUP_MAX_DOCUMENTS_SETTING =
+            Setting.intSetting("ingest.opennlp.warmup.max_documents", 5000, 1, Property.NodeScope);
+
+    private OpenNlpService openNlpService;
+    private volatile ThreadPool threadPool;
+
     @Override
     public List<Setting<?>> getSettings() {
-        return Arrays.asList(MODEL_FILE_SETTINGS);
+        return Arrays.asList(MODEL_FILE_SETTINGS, DICTIONARY_FILE_SETTINGS, PATTERN_FILE_SETTINGS, FILTER_CAPITALIZED_SETTING,
+                FILTER_MIN_TOKENS_SETTING, FILTER_MIN_LETTER_RATIO_SETTING, FILTER_LANGUAGES_SETTING, LANGUAGE_MODEL_FILE_SETTING,
+                LANGUAGE_MAX_CONTENT_LENGTH_SETTING, SENTENCE_MODEL_FILE_SETTING, TOKENIZER_MODEL_FILE_SETTING,
+                PARALLEL_THREADS_SETTING, PARALLEL_MIN_CONTENT_LENGTH_SETTING, CACHE_SIZE_SETTING, CACHE_EXPIRE_SETTING,
+                MODEL_RELOAD_SETTING, MODEL_LOADING_THREADS_SETTING, MODEL_LAZY_LOADING_SETTING, MODEL_COMPILE_ON_LOAD_SETTING,
+                THREAD_POOL_ENABLED_SETTING, WARMUP_ENABLED_SETTING, WARMUP_CORPUS_FILE_SETTING, WARMUP_TIME_LIMIT_SETTING,
+                WARMUP_MAX_DOCUMENTS_SETTING);
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        // registers the size and queue_size settings of the pool, it is only used if enabled
+        return List.of(new FixedExecutorBuilder(settings, THREAD_POOL_NAME, EsExecutors.allocatedProcessors(settings), 1000,
+                "ingest.opennlp.thread_pool", false));
     }
 
     @Override
     public Map<String, Processor.Factory> getProcessors(Processor.Parameters parameters) {
         Path configDirectory = parameters.env.configFile().resolve("ingest-opennlp");
-        OpenNlpService openNlpService = new OpenNlpService(configDirectory, parameters.env.settings());
+        openNlpService = new OpenNlpService(configDirectory, parameters.env.settings());
         openNlpService.start();
 
-        return Collections.singletonMap(OpenNlpProcessor.TYPE, new OpenNlpProcessor.Factory(openNlpService));
+        // processors are created once the node has started, so the thread pool is available by then
+        OpenNlpProcessor.Factory factory = THREAD_POOL_ENABLED_SETTING.get(parameters.env.settings())
+                ? new OpenNlpProcessor.Factory(openNlpService, () -> threadPool.executor(THREAD_POOL_NAME))
+                : new OpenNlpProcessor.Factory(openNlpService);
+        return Collections.singletonMap(OpenNlpProcessor.TYPE, factory);
+    }
+
+    @Override
+    public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
+                                               ResourceWatcherService resourceWatcherService, ScriptService scriptService,
+                                               NamedXContentRegistry xContentRegistry, Environment environment,
+                                               NodeEnvironment nodeEnvironment, NamedWriteableRegistry namedWriteableRegistry,
+                                               IndexNameExpressionResolver indexNameExpressionResolver,
+                                               Supplier<RepositoriesService> repositoriesServiceSupplier, Tracer tracer,
+                                               AllocationDeciders allocationDeciders) {
+        this.threadPool = threadPool;
+        // the processors have been created already, so the service is available
+        if (openNlpService != null && MODEL_RELOAD_SETTING.get(environment.settings())) {
+            FileWatcher watcher = new FileWatcher(openNlpService.getConfigDirectory());
+            watcher.addListener(new FileChangesListener() {
+                @Override
+                public void onFileCreated(Path file) {
+                    openNlpService.reload(file);
+                }
+
+                @Override
+                public void onFileChanged(Path file) {
+                    openNlpService.reload(file);
+                }
+            });
+            try {
+                resourceWatcherService.add(watcher, ResourceWatcherService.Frequency.MEDIUM);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(Settings settings, RestController restController, ClusterSettings clusterSettings,
+                                             IndexScopedSettings indexScopedSettings, SettingsFilter settingsFilter,
+                                             IndexNameExpressionResolver indexNameExpressionResolver,
+                                             Supplier<DiscoveryNodes> nodesInCluster) {
+        return List.of(new RestOpenNlpStatsAction(Node.NODE_NAME_SETTING.get(settings), () -> openNlpService));
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOUtils.close(openNlpService);
     }
 }
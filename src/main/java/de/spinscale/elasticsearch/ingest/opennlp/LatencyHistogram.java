@@ -0,0 +1,83 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.xcontent.ToXContentObject;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram of latencies. Each bucket covers twice the range of the previous one, starting with everything
+ * up to one microsecond, so that a few dozen buckets are enough to cover latencies from microseconds to minutes
+ */
+class LatencyHistogram implements ToXContentObject {
+
+    // the last bucket takes everything above 2^(BUCKETS - 2) microseconds, roughly 70 minutes
+    private static final int BUCKETS = 34;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder totalNanos = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        // the number of bits needed for micros - 1 is the exponent of the next power of two
+        int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+        buckets[Math.min(bucket, BUCKETS - 1)].increment();
+        totalNanos.add(nanos);
+    }
+
+    long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field("count", count());
+        builder.humanReadableField("time_in_millis", "time", TimeValue.timeValueNanos(totalNanos.sum()));
+        // only buckets with values are listed, each one with its upper bound
+        builder.startArray("buckets");
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = buckets[i].sum();
+            if (count > 0) {
+                builder.startObject();
+                if (i < BUCKETS - 1) {
+                    builder.field("le_in_micros", 1L << i);
+                }
+                builder.field("count", count);
+                builder.endObject();
+            }
+        }
+        builder.endArray();
+        return builder.endObject();
+    }
+}
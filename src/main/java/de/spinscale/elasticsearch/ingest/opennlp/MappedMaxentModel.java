@@ -0,0 +1,195 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import opennlp.tools.ml.maxent.GISModel;
+import opennlp.tools.ml.model.Context;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A maxent model, that evaluates directly from a flat, usually memory mapped buffer instead of heap objects. The buffer
+ * has the following layout, all numbers are big endian
+ *
+ * <pre>
+ * int       number of outcomes, predicates, hash table slots, parameters and predicate chars
+ * outcomes  per outcome the number of chars followed by the chars
+ * int[]     open addressing hash table, two ints per slot: the hash of the predicate and its index or -1
+ * int[]     per predicate the offset of its chars, plus one trailing end offset
+ * int[]     per predicate the offset of its parameters, plus one trailing end offset
+ * char[]    the chars of all predicates
+ * int[]     the outcome of each parameter
+ * double[]  the value of each parameter
+ * </pre>
+ */
+class MappedMaxentModel extends PrimitiveMaxentModel {
+
+    private static final int HEADER_SIZE = 5 * Integer.BYTES;
+
+    private final ByteBuffer buffer;
+    private final int tableMask;
+    private final int tableOffset;
+    private final int charOffsetsOffset;
+    private final int parameterOffsetsOffset;
+    private final int charsOffset;
+    private final int outcomesOffset;
+    private final int parametersOffset;
+
+    MappedMaxentModel(ByteBuffer buffer) {
+        super(readOutcomes(buffer));
+        this.buffer = buffer;
+        int numPredicates = buffer.getInt(4);
+        int tableSize = buffer.getInt(8);
+        int numParameters = buffer.getInt(12);
+        int numChars = buffer.getInt(16);
+
+        int offset = HEADER_SIZE;
+        for (String outcome : outcomes()) {
+            offset += Integer.BYTES + outcome.length() * Character.BYTES;
+        }
+        this.tableMask = tableSize - 1;
+        this.tableOffset = offset;
+        this.charOffsetsOffset = tableOffset + tableSize * 2 * Integer.BYTES;
+        this.parameterOffsetsOffset = charOffsetsOffset + (numPredicates + 1) * Integer.BYTES;
+        this.charsOffset = parameterOffsetsOffset + (numPredicates + 1) * Integer.BYTES;
+        this.outcomesOffset = charsOffset + numChars * Character.BYTES;
+        this.parametersOffset = outcomesOffset + numParameters * Integer.BYTES;
+    }
+
+    private static String[] readOutcomes(ByteBuffer buffer) {
+        String[] outcomes = new String[buffer.getInt(0)];
+        int offset = HEADER_SIZE;
+        for (int i = 0; i < outcomes.length; i++) {
+            char[] chars = new char[buffer.getInt(offset)];
+            offset += Integer.BYTES;
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = buffer.getChar(offset);
+                offset += Character.BYTES;
+            }
+            outcomes[i] = new String(chars);
+        }
+        return outcomes;
+    }
+
+    @Override
+    int predicate(String name) {
+        int hash = name.hashCode();
+        for (int slot = slot(hash, tableMask); ; slot = (slot + 1) & tableMask) {
+            int position = tableOffset + slot * 2 * Integer.BYTES;
+            int predicate = buffer.getInt(position + Integer.BYTES);
+            if (predicate < 0) {
+                return -1;
+            }
+            if (buffer.getInt(position) == hash && equals(predicate, name)) {
+                return predicate;
+            }
+        }
+    }
+
+    @Override
+    void addParameters(int predicate, double value, double[] probs) {
+        int end = buffer.getInt(parameterOffsetsOffset + (predicate + 1) * Integer.BYTES);
+        for (int pi = buffer.getInt(parameterOffsetsOffset + predicate * Integer.BYTES); pi < end; pi++) {
+            int outcome = buffer.getInt(outcomesOffset + pi * Integer.BYTES);
+            probs[outcome] += buffer.getDouble(parametersOffset + pi * Double.BYTES) * value;
+        }
+    }
+
+    private boolean equals(int predicate, String name) {
+        int start = buffer.getInt(charOffsetsOffset + predicate * Integer.BYTES);
+        int end = buffer.getInt(charOffsetsOffset + (predicate + 1) * Integer.BYTES);
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (buffer.getChar(charsOffset + (start + i) * Character.BYTES) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the parameters of a maxent model in the format read by this class
+     */
+    static void write(GISModel model, DataOutputStream out) throws IOException {
+        PredicateContexts data = predicateContexts(model);
+        String[] outcomes = data.outcomes();
+        String[] names = data.predicates();
+        Context[] contexts = data.contexts();
+        int numChars = 0;
+        for (String name : names) {
+            numChars += name.length();
+        }
+
+        int tableSize = tableSize(names.length);
+        int[] table = new int[tableSize * 2];
+        for (int slot = 0; slot < tableSize; slot++) {
+            table[slot * 2 + 1] = -1;
+        }
+        for (int i = 0; i < names.length; i++) {
+            int hash = names[i].hashCode();
+            int slot = slot(hash, tableSize - 1);
+            while (table[slot * 2 + 1] >= 0) {
+                slot = (slot + 1) & (tableSize - 1);
+            }
+            table[slot * 2] = hash;
+            table[slot * 2 + 1] = i;
+        }
+
+        out.writeInt(outcomes.length);
+        out.writeInt(names.length);
+        out.writeInt(tableSize);
+        out.writeInt(data.numParameters());
+        out.writeInt(numChars);
+        for (String outcome : outcomes) {
+            out.writeInt(outcome.length());
+            out.writeChars(outcome);
+        }
+        for (int value : table) {
+            out.writeInt(value);
+        }
+        int offset = 0;
+        for (String name : names) {
+            out.writeInt(offset);
+            offset += name.length();
+        }
+        out.writeInt(offset);
+        offset = 0;
+        for (Context context : contexts) {
+            out.writeInt(offset);
+            offset += context.getOutcomes().length;
+        }
+        out.writeInt(offset);
+        for (String name : names) {
+            out.writeChars(name);
+        }
+        for (Context context : contexts) {
+            for (int outcome : context.getOutcomes()) {
+                out.writeInt(outcome);
+            }
+        }
+        for (Context context : contexts) {
+            for (double parameter : context.getParameters()) {
+                out.writeDouble(parameter);
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import opennlp.tools.ml.BeamSearch;
+import opennlp.tools.ml.maxent.GISModel;
+import opennlp.tools.ml.model.AbstractModel;
+import opennlp.tools.ml.model.BinaryFileDataReader;
+import opennlp.tools.ml.model.Context;
+import opennlp.tools.ml.model.GenericModelReader;
+import opennlp.tools.ml.model.GenericModelWriter;
+import opennlp.tools.ml.model.SequenceClassificationModel;
+import opennlp.tools.namefind.NameFinderME;
+import opennlp.tools.namefind.TokenNameFinderModel;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A name finder model, whose parameters are memory mapped from a compiled model file instead of being read into the heap.
+ * The compiled file starts with a copy of the original model, in which the parameters are replaced by a tiny placeholder,
+ * so that the feature generators and the sequence codec can be read like before, followed by the parameters in the
+ * format of {@link MappedMaxentModel}. Reading such a file only takes as long as reading the feature generators.
+ *
+ * <pre>
+ * long    magic
+ * int     version
+ * int     length of the model without parameters
+ * byte[]  model without parameters, padded to eight bytes
+ * ...     parameters
+ * </pre>
+ */
+class MappedNameFinderModel extends TokenNameFinderModel {
+
+    private static final long serialVersionUID = 1L;
+
+    // ONLPMMAP
+    static final long MAGIC = 0x4F4E4C504D4D4150L;
+    static final int VERSION = 1;
+    private static final int HEADER_SIZE = Long.BYTES + 2 * Integer.BYTES;
+
+    // the entry of the model zip file containing the parameters of the name finder
+    static final String PARAMETERS_ENTRY = "nameFinder.model";
+    private static final String PLACEHOLDER_PREDICATE = "opennlp.mapped.placeholder";
+
+    private final MappedMaxentModel parameters;
+
+    private MappedNameFinderModel(InputStream in, MappedMaxentModel parameters) throws IOException {
+        super(in);
+        this.parameters = parameters;
+    }
+
+    @Override
+    public SequenceClassificationModel<String> getNameFinderSequenceModel() {
+        String beamSize = getManifestProperty(BeamSearch.BEAM_SIZE_PARAMETER);
+        return new BeamSearch<>(beamSize == null ? NameFinderME.DEFAULT_BEAM_SIZE : Integer.parseInt(beamSize), parameters);
+    }
+
+    /**
+     * Returns true if the file is a compiled model, that can be read with {@link #load(Path)}
+     */
+    static boolean isMappedModel(Path path) throws IOException {
+        try (InputStream is = Files.newInputStream(path)) {
+            byte[] magic = is.readNBytes(Long.BYTES);
+            return magic.length == Long.BYTES && ByteBuffer.wrap(magic).getLong() == MAGIC;
+        }
+    }
+
+    /**
+     * Maps a compiled model file into memory. Only the model without its parameters is read into the heap
+     */
+    static TokenNameFinderModel load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("compiled model [" + path + "] is too large to be mapped");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getLong(0) != MAGIC) {
+                throw new IOException("file [" + path + "] is not a compiled model");
+            }
+            int version = buffer.getInt(Long.BYTES);
+            if (version != VERSION) {
+                throw new IOException("compiled model [" + path + "] has version [" + version + "], expected [" + VERSION +
+                        "], please compile it again");
+            }
+
+            byte[] model = new byte[buffer.getInt(Long.BYTES + Integer.BYTES)];
+            buffer.get(HEADER_SIZE, model);
+            int parametersOffset = align(HEADER_SIZE + model.length);
+            MappedMaxentModel parameters =
+                    new MappedMaxentModel(buffer.slice(parametersOffset, buffer.capacity() - parametersOffset));
+            return new MappedNameFinderModel(new ByteArrayInputStream(model), parameters);
+        }
+    }
+
+    /**
+     * Compiles a name finder model, the output can be read with {@link #load(Path)}
+     */
+    static void compile(Path source, Path target) throws IOException {
+        ByteArrayOutputStream model = new ByteArrayOutputStream();
+        AbstractModel parameters = null;
+        try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(source));
+             ZipOutputStream out = new ZipOutputStream(model)) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                out.putNextEntry(new ZipEntry(entry.getName()));
+                if (PARAMETERS_ENTRY.equals(entry.getName())) {
+                    parameters = new GenericModelReader(new BinaryFileDataReader(new ByteArrayInputStream(zip.readAllBytes())))
+                            .getModel();
+                    writePlaceholder((String[]) parameters.getDataStructures()[2], out);
+                } else {
+                    zip.transferTo(out);
+                }
+                out.closeEntry();
+            }
+        }
+        if (parameters == null) {
+            throw new IOException("file [" + source + "] is not a name finder model, it does not contain [" + PARAMETERS_ENTRY + "]");
+        }
+        if (parameters instanceof GISModel == false) {
+            throw new IOException("only maxent models can be compiled, [" + source + "] contains a [" +
+                    parameters.getClass().getSimpleName() + "]");
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(target)))) {
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(model.size());
+            model.writeTo(out);
+            for (int i = HEADER_SIZE + model.size(); i < align(HEADER_SIZE + model.size()); i++) {
+                out.writeByte(0);
+            }
+            MappedMaxentModel.write((GISModel) parameters, out);
+        }
+    }
+
+    // the name finder model only checks that there is a model with the right outcomes, it is never evaluated
+    private static void writePlaceholder(String[] outcomes, OutputStream out) throws IOException {
+        Context[] params = new Context[] { new Context(new int[] { 0 }, new double[] { 0 }) };
+        GISModel placeholder = new GISModel(params, new String[] { PLACEHOLDER_PREDICATE }, outcomes);
+        // the writer closes its stream once done
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new GenericModelWriter(placeholder, new DataOutputStream(bytes)).persist();
+        bytes.writeTo(out);
+    }
+
+    private static int align(int offset) {
+        return (offset + Long.BYTES - 1) & -Long.BYTES;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Cheap checks, whether a document can contain any entities of a model at all. Documents failing them, like machine
+ * generated logs or numeric payloads, skip the model instead of running a full beam search that finds nothing. All checks
+ * are evaluated against the {@link Signals} of a document, which are collected once per document for all models
+ */
+class ModelFilter {
+
+    private final boolean capitalized;
+    private final int minTokens;
+    private final double minLetterRatio;
+
+    ModelFilter(boolean capitalized, int minTokens, double minLetterRatio) {
+        this.capitalized = capitalized;
+        this.minTokens = minTokens;
+        this.minLetterRatio = minLetterRatio;
+    }
+
+    /**
+     * Returns the filter configured for the model, or null if the model runs over every document
+     */
+    static ModelFilter create(String model, Settings settings) {
+        boolean capitalized = IngestOpenNlpPlugin.FILTER_CAPITALIZED_SETTING.getConcreteSettingForNamespace(model).get(settings);
+        int minTokens = IngestOpenNlpPlugin.FILTER_MIN_TOKENS_SETTING.getConcreteSettingForNamespace(model).get(settings);
+        double minLetterRatio = IngestOpenNlpPlugin.FILTER_MIN_LETTER_RATIO_SETTING.getConcreteSettingForNamespace(model).get(settings);
+        if (capitalized == false && minTokens == 0 && minLetterRatio == 0) {
+            return null;
+        }
+        return new ModelFilter(capitalized, minTokens, minLetterRatio);
+    }
+
+    boolean accepts(Signals signals) {
+        return signals.tokens >= minTokens
+                && (capitalized == false || signals.capitalized)
+                && signals.letterRatio() >= minLetterRatio;
+    }
+
+    /**
+     * What the filters look at, collected in a single pass over the chars of the tokens
+     */
+    static final class Signals {
+
+        private final int tokens;
+        private final boolean capitalized;
+        private final int letters;
+        private final int chars;
+
+        private Signals(int tokens, boolean capitalized, int letters, int chars) {
+            this.tokens = tokens;
+            this.capitalized = capitalized;
+            this.letters = letters;
+            this.chars = chars;
+        }
+
+        /**
+         * Collects the signals straight from the content, without creating the strings of the tokens
+         */
+        static Signals of(String content, int[] tokenOffsets) {
+            boolean capitalized = false;
+            int letters = 0;
+            int chars = 0;
+            int tokens = OffsetTokenizer.count(tokenOffsets);
+            for (int token = 0; token < tokens; token++) {
+                int start = OffsetTokenizer.start(tokenOffsets, token);
+                int end = OffsetTokenizer.end(tokenOffsets, token);
+                int tokenLetters = 0;
+                for (int i = start; i < end; i++) {
+                    if (Character.isLetter(content.charAt(i))) {
+                        tokenLetters++;
+                    }
+                }
+                // a token starting with an upper case letter and consisting of letters only
+                if (tokenLetters == end - start && tokenLetters > 0 && Character.isUpperCase(content.charAt(start))) {
+                    capitalized = true;
+                }
+                letters += tokenLetters;
+                chars += end - start;
+            }
+            return new Signals(tokens, capitalized, letters, chars);
+        }
+
+        // the share of letters among all chars of the tokens, whitespace is not part of any token
+        double letterRatio() {
+            return chars == 0 ? 0 : (double) letters / chars;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The models to download, one model per line with its name, file name, size in bytes, SHA-256 checksum and source,
+ * separated by whitespace. The size and the checksum can be {@code -} if they are not known, the source is an absolute
+ * URL, i.e. {@code https://} or {@code file://}, or relative to the manifest. Empty lines and lines starting with {@code #}
+ * are skipped
+ *
+ * <pre>
+ * # name     file                 size  sha256  source
+ * persons    en-ner-persons.bin   -     -       https://mirror.example.org/models/en-ner-person.bin
+ * locations  en-ner-locations.bin -     -       en-ner-location.bin
+ * </pre>
+ */
+final class ModelManifest {
+
+    // the sample models of OpenNLP, their checksums are printed when downloading them, so that they can be pinned
+    static final List<String> SAMPLE_MODELS = List.of(
+            "persons    en-ner-persons.bin    -  -  http://opennlp.sourceforge.net/models-1.5/en-ner-person.bin",
+            "dates      en-ner-dates.bin      -  -  http://opennlp.sourceforge.net/models-1.5/en-ner-date.bin",
+            "locations  en-ner-locations.bin  -  -  http://opennlp.sourceforge.net/models-1.5/en-ner-location.bin");
+
+    private ModelManifest() {}
+
+    /**
+     * A single model of the manifest
+     *
+     * @param size    the size in bytes or -1, if not known
+     * @param sha256  the lower case hex encoded checksum or null, if not known
+     */
+    record Entry(String name, String file, long size, String sha256, URI source) {}
+
+    /**
+     * Parses the lines of a manifest, resolving relative sources against the location of the manifest
+     *
+     * @throws IllegalArgumentException  if a line is invalid, the message contains the line number
+     */
+    static List<Entry> parse(List<String> lines, URI location) {
+        List<Entry> entries = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        Set<String> files = new HashSet<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            try {
+                Entry entry = parse(line, location);
+                if (names.add(entry.name()) == false) {
+                    throw new IllegalArgumentException("model [" + entry.name() + "] is listed twice");
+                }
+                if (files.add(entry.file()) == false) {
+                    throw new IllegalArgumentException("file [" + entry.file() + "] is listed twice");
+                }
+                entries.add(entry);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("invalid manifest entry in line [" + (i + 1) + "]: " + e.getMessage(), e);
+            }
+        }
+        return entries;
+    }
+
+    private static Entry parse(String line, URI location) {
+        String[] columns = line.split("\\s+");
+        if (columns.length != 5) {
+            throw new IllegalArgumentException("expected name, file, size, sha256 and source, but got [" + line + "]");
+        }
+
+        String file = columns[1];
+        // the models are always written to the config directory of the plugin
+        if (file.contains("/") || file.contains("\\") || file.equals(".") || file.equals("..")) {
+            throw new IllegalArgumentException("file [" + file + "] must be a file name without a directory");
+        }
+
+        long size = -1;
+        if (columns[2].equals("-") == false) {
+            try {
+                size = Long.parseLong(columns[2]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("size [" + columns[2] + "] is not a number");
+            }
+            if (size < 0) {
+                throw new IllegalArgumentException("size [" + columns[2] + "] must not be negative");
+            }
+        }
+
+        String sha256 = null;
+        if (columns[3].equals("-") == false) {
+            sha256 = columns[3].toLowerCase(Locale.ROOT);
+            if (sha256.matches("[0-9a-f]{64}") == false) {
+                throw new IllegalArgumentException("sha256 [" + columns[3] + "] must be 64 hex characters");
+            }
+        }
+
+        URI source;
+        try {
+            source = location.resolve(new URI(columns[4]));
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("source [" + columns[4] + "] is not a valid URL");
+        }
+        return new Entry(columns[0], file, size, sha256, source);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import opennlp.tools.util.Span;
+import opennlp.tools.util.StringUtil;
+import org.apache.lucene.util.ArrayUtil;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits content into tokens without creating a string per token. The tokens are returned as a single array of character
+ * offsets, token i starts at {@code offsets[2 * i]} and ends at {@code offsets[2 * i + 1]}. The token strings are only
+ * created by {@link #tokens(String, int[])}, for the name finders that need them
+ */
+final class OffsetTokenizer {
+
+    // the same tokens as the SimpleTokenizer of OpenNLP
+    static final String SIMPLE = "simple";
+    // the same tokens as the WhitespaceTokenizer of OpenNLP
+    static final String WHITESPACE = "whitespace";
+    // the tokens of the configured tokenizer model
+    static final String MODEL = "model";
+    static final List<String> NAMES = List.of(SIMPLE, WHITESPACE, MODEL);
+
+    private static final int[] NO_TOKENS = new int[0];
+
+    private static final int SPACE = 0;
+    private static final int LETTER = 1;
+    private static final int DIGIT = 2;
+    private static final int OTHER = 3;
+
+    private OffsetTokenizer() {}
+
+    /**
+     * Splits the content into runs of letters, runs of digits and runs of the same other char, like the SimpleTokenizer
+     * of OpenNLP. Stops after the given number of tokens
+     */
+    static int[] simple(String content, int maxTokens) {
+        Offsets offsets = new Offsets(content.length());
+        int state = SPACE;
+        int start = -1;
+        char previous = 0;
+        for (int i = 0; i < content.length(); i++) {
+            char c = content.charAt(i);
+            int type = charType(c);
+            if (state == SPACE) {
+                start = i;
+            } else if (type != state || (type == OTHER && c != previous)) {
+                if (offsets.add(start, i) == maxTokens) {
+                    return offsets.toArray();
+                }
+                start = i;
+            }
+            state = type;
+            previous = c;
+        }
+        if (state != SPACE) {
+            offsets.add(start, content.length());
+        }
+        return offsets.toArray();
+    }
+
+    /**
+     * Splits the content at whitespace only, like the WhitespaceTokenizer of OpenNLP. Stops after the given number of tokens
+     */
+    static int[] whitespace(String content, int maxTokens) {
+        Offsets offsets = new Offsets(content.length());
+        int start = -1;
+        for (int i = 0; i < content.length(); i++) {
+            if (StringUtil.isWhitespace(content.charAt(i))) {
+                if (start >= 0) {
+                    if (offsets.add(start, i) == maxTokens) {
+                        return offsets.toArray();
+                    }
+                    start = -1;
+                }
+            } else if (start < 0) {
+                start = i;
+            }
+        }
+        if (start >= 0) {
+            offsets.add(start, content.length());
+        }
+        return offsets.toArray();
+    }
+
+    /**
+     * Converts the spans returned by a tokenizer, i.e. one using a model, into offsets
+     */
+    static int[] fromSpans(Span[] spans, int maxTokens) {
+        int count = Math.min(spans.length, maxTokens);
+        int[] offsets = new int[count * 2];
+        for (int i = 0; i < count; i++) {
+            offsets[i * 2] = spans[i].getStart();
+            offsets[i * 2 + 1] = spans[i].getEnd();
+        }
+        return offsets;
+    }
+
+    static int count(int[] offsets) {
+        return offsets.length / 2;
+    }
+
+    static int start(int[] offsets, int token) {
+        return offsets[token * 2];
+    }
+
+    static int end(int[] offsets, int token) {
+        return offsets[token * 2 + 1];
+    }
+
+    /**
+     * Creates the strings of all tokens, which only the name finders working on tokens need
+     */
+    static String[] tokens(String content, int[] offsets) {
+        String[] tokens = new String[count(offsets)];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = content.substring(start(offsets, i), end(offsets, i));
+        }
+        return tokens;
+    }
+
+    private static int charType(char c) {
+        if (StringUtil.isWhitespace(c)) {
+            return SPACE;
+        } else if (Character.isLetter(c)) {
+            return LETTER;
+        } else if (Character.isDigit(c)) {
+            return DIGIT;
+        }
+        return OTHER;
+    }
+
+    /**
+     * A growing array of offsets, sized for an average token length of five chars up front
+     */
+    private static final class Offsets {
+
+        private int[] offsets;
+        private int size;
+
+        Offsets(int contentLength) {
+            this.offsets = contentLength == 0 ? NO_TOKENS : new int[Math.max(contentLength / 5, 1) * 2];
+        }
+
+        // returns the number of tokens added so far
+        int add(int start, int end) {
+            if (size + 2 > offsets.length) {
+                offsets = ArrayUtil.grow(offsets, size + 2);
+            }
+            offsets[size++] = start;
+            offsets[size++] = end;
+            return size / 2;
+        }
+
+        int[] toArray() {
+            return size == offsets.length ? offsets : Arrays.copyOf(offsets, size);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import org.elasticsearch.xcontent.ToXContentFragment;
+import org.elasticsearch.xcontent.ToXContentObject;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Node level counters and latencies per model and per processor tag, exposed via the stats endpoint
+ */
+class OpenNlpMetrics implements ToXContentFragment {
+
+    // used for processors without a tag, all of them share their metrics
+    static final String UNTAGGED = "_untagged";
+
+    private final Map<String, ModelMetrics> models = new ConcurrentHashMap<>();
+    private final Map<String, ProcessorMetrics> processors = new ConcurrentHashMap<>();
+
+    ModelMetrics model(String name) {
+        return models.computeIfAbsent(name, key -> new ModelMetrics());
+    }
+
+    ProcessorMetrics processor(String tag) {
+        return processors.computeIfAbsent(tag == null ? UNTAGGED : tag, key -> new ProcessorMetrics());
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("models");
+        for (Map.Entry<String, ModelMetrics> entry : new TreeMap<>(models).entrySet()) {
+            builder.field(entry.getKey(), entry.getValue());
+        }
+        builder.endObject();
+        builder.startObject("processors");
+        for (Map.Entry<String, ProcessorMetrics> entry : new TreeMap<>(processors).entrySet()) {
+            builder.field(entry.getKey(), entry.getValue());
+        }
+        return builder.endObject();
+    }
+
+    /**
+     * Counters shared by models and processors
+     */
+    abstract static class Counters implements ToXContentObject {
+
+        private final LongAdder documents = new LongAdder();
+        private final LongAdder tokens = new LongAdder();
+        private final LongAdder entities = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+
+        void onDocument(int tokenCount, int entityCount) {
+            documents.increment();
+            tokens.add(tokenCount);
+            entities.add(entityCount);
+        }
+
+        void onFailure() {
+            failures.increment();
+        }
+
+        long documents() {
+            return documents.sum();
+        }
+
+        long tokens() {
+            return tokens.sum();
+        }
+
+        long entities() {
+            return entities.sum();
+        }
+
+        long failures() {
+            return failures.sum();
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field("documents", documents());
+            builder.field("tokens", tokens());
+            builder.field("entities", entities());
+            builder.field("failures", failures());
+            innerToXContent(builder, params);
+            return builder.endObject();
+        }
+
+        // the counters and latencies specific to models or processors
+        abstract void innerToXContent(XContentBuilder builder, Params params) throws IOException;
+    }
+
+    /**
+     * Every run of a model over a document, entities served from the cache are not counted. Documents rejected by the
+     * filter of the model are counted as skipped only
+     */
+    static class ModelMetrics extends Counters {
+
+        private final LongAdder skipped = new LongAdder();
+        private final LatencyHistogram find = new LatencyHistogram();
+
+        void onSkipped() {
+            skipped.increment();
+        }
+
+        long skipped() {
+            return skipped.sum();
+        }
+
+        LatencyHistogram find() {
+            return find;
+        }
+
+        @Override
+        void innerToXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field("skipped", skipped());
+            builder.field("find", find);
+        }
+    }
+
+    /**
+     * Every document processed by a processor, including the ones served from the cache. Documents whose time budget ran
+     * out are counted as budget exceeded in addition, documents rejected by the thread pool are counted as rejected only
+     */
+    static class ProcessorMetrics extends Counters {
+
+        private final LongAdder budgetExceeded = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LatencyHistogram languageDetection = new LatencyHistogram();
+        private final LatencyHistogram tokenization = new LatencyHistogram();
+        private final LatencyHistogram annotatedText = new LatencyHistogram();
+        private final LatencyHistogram total = new LatencyHistogram();
+
+        void onBudgetExceeded() {
+            budgetExceeded.increment();
+        }
+
+        long budgetExceeded() {
+            return budgetExceeded.sum();
+        }
+
+        void onRejected() {
+            rejected.increment();
+        }
+
+        long rejected() {
+            return rejected.sum();
+        }
+
+        LatencyHistogram languageDetection() {
+            return languageDetection;
+        }
+
+        LatencyHistogram tokenization() {
+            return tokenization;
+        }
+
+        LatencyHistogram annotatedText() {
+            return annotatedText;
+        }
+
+        LatencyHistogram total() {
+            return total;
+        }
+
+        @Override
+        void innerToXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field("budget_exceeded", budgetExceeded());
+            builder.field("rejected", rejected());
+            builder.field("language_detection", languageDetection);
+            builder.field("tokenization", tokenization);
+            builder.field("annotated_text", annotatedText);
+            builder.field("total", total);
+        }
+    }
+}
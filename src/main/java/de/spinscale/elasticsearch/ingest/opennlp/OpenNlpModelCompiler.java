@@ -0,0 +1,80 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import joptsimple.NonOptionArgumentSpec;
+import joptsimple.OptionSet;
+import org.elasticsearch.cli.ExitCodes;
+import org.elasticsearch.cli.ProcessInfo;
+import org.elasticsearch.cli.Terminal;
+import org.elasticsearch.cli.UserException;
+import org.elasticsearch.common.cli.EnvironmentAwareCommand;
+import org.elasticsearch.env.Environment;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class OpenNlpModelCompiler extends EnvironmentAwareCommand {
+
+    private final NonOptionArgumentSpec<String> modelsArgument;
+
+    public static void main(String[] args) throws Exception {
+        exit(new OpenNlpModelCompiler().main(args, Terminal.DEFAULT, ProcessInfo.fromSystem()));
+    }
+
+    public OpenNlpModelCompiler() {
+        super("Compiles name finder models into a format, that is memory mapped instead of being read into the heap");
+        this.modelsArgument = parser.nonOptions("model files in the config/ingest-opennlp directory, i.e. en-ner-persons.bin");
+    }
+
+    @Override
+    public void execute(Terminal terminal, OptionSet options, Environment env, ProcessInfo processInfo) throws Exception {
+        List<String> models = options.valuesOf(modelsArgument);
+        if (models.isEmpty()) {
+            throw new UserException(ExitCodes.USAGE, "Specify at least one model file to compile");
+        }
+
+        Path configDirectoryPath = env.configFile().resolve(IngestOpenNlpPlugin.NAME).normalize().toAbsolutePath();
+        for (String model : models) {
+            Path source = configDirectoryPath.resolve(model);
+            if (Files.exists(source) == false) {
+                throw new UserException(ExitCodes.IO_ERROR, "Model file [" + source + "] does not exist");
+            }
+            if (MappedNameFinderModel.isMappedModel(source)) {
+                throw new UserException(ExitCodes.DATA_ERROR, "Model file [" + source + "] is compiled already");
+            }
+
+            Path target = source.resolveSibling(compiledFileName(source.getFileName().toString()));
+            terminal.print(Terminal.Verbosity.NORMAL, "Compiling " + source.getFileName() + " to " + target.getFileName() + "... ");
+            MappedNameFinderModel.compile(source, target);
+            // make sure the compiled model can be read again, before anyone configures it
+            MappedNameFinderModel.load(target);
+            terminal.println("done");
+        }
+
+        terminal.println("\nyou can replace the model files in your configuration with the compiled ones now, i.e.\n");
+        String model = models.get(0);
+        terminal.println("ingest.opennlp.model.file.NAME: " + compiledFileName(Path.of(model).getFileName().toString()));
+    }
+
+    static String compiledFileName(String fileName) {
+        String name = fileName.endsWith(".bin") ? fileName.substring(0, fileName.length() - ".bin".length()) : fileName;
+        return name + ".mmap";
+    }
+}
@@ -18,60 +18,301 @@
 package de.spinscale.elasticsearch.ingest.opennlp;
 
 import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+import org.elasticsearch.cli.ExitCodes;
 import org.elasticsearch.cli.ProcessInfo;
 import org.elasticsearch.cli.Terminal;
+import org.elasticsearch.cli.UserException;
 import org.elasticsearch.common.cli.EnvironmentAwareCommand;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.core.SuppressForbidden;
 import org.elasticsearch.env.Environment;
 
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
 import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
 public class OpenNlpModelDownloader extends EnvironmentAwareCommand {
 
+    // a scheme needs at least two chars, so that windows paths like C:\models.txt are read as files
+    private static final Pattern URL_PATTERN = Pattern.compile("^[a-zA-Z][a-zA-Z0-9+.-]+:.*");
+    private static final int TIMEOUT_MILLIS = 30_000;
+    private static final long BACKOFF_MILLIS = 500;
+
+    private final OptionSpec<String> manifestOption;
+    private final OptionSpec<Integer> parallelOption;
+    private final OptionSpec<Integer> retriesOption;
+
     public static void main(String[] args) throws Exception {
         exit(new OpenNlpModelDownloader().main(args, Terminal.DEFAULT, ProcessInfo.fromSystem()));
     }
 
     public OpenNlpModelDownloader() {
-        super("Downloads three sample models for named entity recognition for dates, locations and persons");
+        super("Downloads the models of a manifest, by default three sample models for dates, locations and persons");
+        this.manifestOption = parser.accepts("manifest", "file or URL of a manifest listing the models to download")
+                .withRequiredArg();
+        this.parallelOption = parser.accepts("parallel", "number of models to download at the same time")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(4);
+        this.retriesOption = parser.accepts("retries", "number of times a failed download is resumed")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(3);
     }
 
     @Override
     public void execute(Terminal terminal, OptionSet options, Environment env, ProcessInfo processInfo) throws Exception {
+        int parallel = options.valueOf(parallelOption);
+        int retries = options.valueOf(retriesOption);
+        if (parallel < 1) {
+            throw new UserException(ExitCodes.USAGE, "--parallel must be at least 1, but was [" + parallel + "]");
+        }
+        if (retries < 0) {
+            throw new UserException(ExitCodes.USAGE, "--retries must not be negative, but was [" + retries + "]");
+        }
+
         Path configDirectoryPath = env.configFile().resolve(IngestOpenNlpPlugin.NAME).normalize().toAbsolutePath();
         if (Files.exists(configDirectoryPath) == false) {
             Files.createDirectories(configDirectoryPath);
         }
 
-        String baseUrl = "http://opennlp.sourceforge.net/models-1.5/";
-        download(baseUrl + "en-ner-person.bin", configDirectoryPath.resolve("en-ner-persons.bin"), terminal);
-        download(baseUrl + "en-ner-location.bin", configDirectoryPath.resolve("en-ner-locations.bin"), terminal);
-        download(baseUrl + "en-ner-date.bin", configDirectoryPath.resolve("en-ner-dates.bin"), terminal);
+        List<ModelManifest.Entry> entries;
+        try {
+            if (options.has(manifestOption)) {
+                entries = readManifest(options.valueOf(manifestOption), processInfo.workingDir());
+            } else {
+                entries = ModelManifest.parse(ModelManifest.SAMPLE_MODELS, configDirectoryPath.toUri());
+            }
+        } catch (IllegalArgumentException e) {
+            throw new UserException(ExitCodes.DATA_ERROR, e.getMessage());
+        } catch (IOException e) {
+            throw new UserException(ExitCodes.IO_ERROR, "Could not read manifest: " + e.getMessage(), e);
+        }
+        if (entries.isEmpty()) {
+            throw new UserException(ExitCodes.DATA_ERROR, "The manifest does not list any models");
+        }
+
+        terminal.println("Downloading " + entries.size() + " models, " + parallel + " at a time...");
+        List<Result> results = download(entries, configDirectoryPath, parallel, retries);
+
+        int failures = 0;
+        for (Result result : results) {
+            terminal.print(Terminal.Verbosity.NORMAL, result.entry().file() + "... ");
+            if (result.failure() != null) {
+                failures++;
+                terminal.println("failed: " + result.failure().getMessage());
+            } else {
+                terminal.println((result.downloaded() ? "done" : "not downloading, existed already") + ", sha256 " + result.sha256());
+            }
+        }
+        if (failures > 0) {
+            throw new UserException(ExitCodes.IO_ERROR, "Failed to download [" + failures + "] of [" + results.size() + "] models");
+        }
 
         terminal.println("\nyou can use the following configuration settings now\n");
+        for (Result result : results) {
+            terminal.println("ingest.opennlp.model.file." + result.entry().name() + ": " + result.entry().file());
+        }
+    }
+
+    /**
+     * The outcome of downloading a single model, either the checksum of the model file or the reason it failed
+     */
+    record Result(ModelManifest.Entry entry, boolean downloaded, String sha256, Exception failure) {}
 
-        terminal.println("ingest.opennlp.model.file.persons: en-ner-persons.bin");
-        terminal.println("ingest.opennlp.model.file.dates: en-ner-dates.bin");
-        terminal.println("ingest.opennlp.model.file.locations: en-ner-locations.bin");
+    /**
+     * Reads a manifest from a file or an URL, a relative file is resolved against the working directory
+     */
+    @SuppressForbidden(reason = "manifests can be read from a remote location")
+    static List<ModelManifest.Entry> readManifest(String location, Path workingDir) throws IOException {
+        if (URL_PATTERN.matcher(location).matches()) {
+            URI uri = URI.create(location);
+            URLConnection connection = uri.toURL().openConnection();
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+                return ModelManifest.parse(reader.lines().toList(), uri);
+            }
+        }
+
+        Path path = workingDir.resolve(location).normalize().toAbsolutePath();
+        return ModelManifest.parse(Files.readAllLines(path, StandardCharsets.UTF_8), path.toUri());
     }
 
+    /**
+     * Downloads all models of a manifest into the given directory, the results are returned in the order of the manifest.
+     * A failed download does not stop the other ones
+     */
+    static List<Result> download(List<ModelManifest.Entry> entries, Path directory, int parallel, int retries)
+            throws InterruptedException {
+        int threads = Math.min(parallel, Math.max(1, entries.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads, EsExecutors.daemonThreadFactory("ingest-opennlp-download"));
+        try {
+            List<Future<Result>> futures = new ArrayList<>(entries.size());
+            for (ModelManifest.Entry entry : entries) {
+                futures.add(executor.submit(() -> download(entry, directory, retries)));
+            }
+
+            List<Result> results = new ArrayList<>(entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    Exception cause = e.getCause() instanceof Exception c ? c : e;
+                    results.add(new Result(entries.get(i), false, null, cause));
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Downloads a single model, unless it exists already and matches its checksum. The model is written to a
+     * {@code .part} file first, which is resumed on retries and on the next run, and moved in place once it is verified
+     */
+    static Result download(ModelManifest.Entry entry, Path directory, int retries) throws IOException, InterruptedException {
+        Path target = directory.resolve(entry.file());
+        if (Files.exists(target)) {
+            String sha256 = sha256(target);
+            if (entry.sha256() == null || entry.sha256().equals(sha256)) {
+                return new Result(entry, false, sha256, null);
+            }
+        }
+
+        Path part = directory.resolve(entry.file() + ".part");
+        IOException failure = null;
+        for (int attempt = 0; attempt <= retries; attempt++) {
+            if (attempt > 0) {
+                Thread.sleep(BACKOFF_MILLIS << (attempt - 1));
+            }
+            try {
+                transfer(entry.source(), part);
+                String sha256 = verify(entry, part);
+                move(part, target);
+                return new Result(entry, true, sha256, null);
+            } catch (IOException e) {
+                if (failure != null) {
+                    e.addSuppressed(failure);
+                }
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Appends the missing bytes of the source to the part file, HTTP servers are asked for a range, all other sources skip
+     * the bytes written already
+     */
     @SuppressForbidden(reason = "we have to download the models, so we have to open a socket")
-    private void download(String url, Path filename, Terminal terminal) throws Exception {
-        terminal.print(Terminal.Verbosity.NORMAL,"Downloading " + filename.getFileName() + " model... ");
-        if (Files.exists(filename)) {
-            terminal.println("not downloading, existed already.");
-        } else {
-            URLConnection connection = new URL(url).openConnection();
-            connection.connect();
-
-            try (InputStream inputStream = connection.getInputStream()) {
-                Files.copy(inputStream, filename);
+    private static void transfer(URI source, Path part) throws IOException {
+        long offset = Files.exists(part) ? Files.size(part) : 0;
+        URLConnection connection = source.toURL().openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        boolean skip = offset > 0;
+        if (connection instanceof HttpURLConnection http) {
+            if (offset > 0) {
+                http.setRequestProperty("Range", "bytes=" + offset + "-");
+            }
+            int status = http.getResponseCode();
+            if (status == 416) {
+                // the part file is complete already, verifying it tells if it is correct
+                http.disconnect();
+                return;
+            }
+            if (status == HttpURLConnection.HTTP_OK) {
+                // the server ignored the range, so start over
+                offset = 0;
+            } else if (status != HttpURLConnection.HTTP_PARTIAL) {
+                http.disconnect();
+                throw new IOException("Downloading [" + source + "] failed with HTTP status [" + status + "]");
+            }
+            skip = false;
+        }
+
+        try (InputStream in = connection.getInputStream()) {
+            if (skip) {
+                try {
+                    in.skipNBytes(offset);
+                } catch (EOFException e) {
+                    Files.delete(part);
+                    throw new IOException("Part file [" + part + "] is larger than [" + source + "], deleted it", e);
+                }
+            }
+            StandardOpenOption mode = offset > 0 ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING;
+            try (OutputStream out = Files.newOutputStream(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode)) {
+                in.transferTo(out);
+            }
+        }
+    }
+
+    /**
+     * Checks size and checksum of a downloaded file, a file that can not become valid by resuming it is deleted
+     */
+    private static String verify(ModelManifest.Entry entry, Path part) throws IOException {
+        long size = Files.size(part);
+        if (entry.size() >= 0 && size < entry.size()) {
+            throw new IOException("Incomplete download of [" + entry.file() + "], expected [" + entry.size() + "] bytes but got ["
+                    + size + "]");
+        }
+        if (entry.size() >= 0 && size > entry.size()) {
+            Files.delete(part);
+            throw new IOException("Download of [" + entry.file() + "] is too large, expected [" + entry.size() + "] bytes but got ["
+                    + size + "]");
+        }
+
+        String sha256 = sha256(part);
+        if (entry.sha256() != null && entry.sha256().equals(sha256) == false) {
+            Files.delete(part);
+            throw new IOException("Checksum mismatch for [" + entry.file() + "], expected sha256 [" + entry.sha256() + "] but got ["
+                    + sha256 + "]");
+        }
+        return sha256;
+    }
+
+    private static void move(Path part, Path target) throws IOException {
+        try {
+            Files.move(part, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    static String sha256(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                digest.update(buffer, 0, read);
             }
-            terminal.println("done");
         }
+        return HexFormat.of().formatHex(digest.digest());
     }
 }
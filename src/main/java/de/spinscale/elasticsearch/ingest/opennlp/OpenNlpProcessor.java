@@ -18,18 +18,29 @@
 package de.spinscale.elasticsearch.ingest.opennlp;
 
 import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.core.TimeValue;
 import org.elasticsearch.ingest.AbstractProcessor;
 import org.elasticsearch.ingest.IngestDocument;
 import org.elasticsearch.ingest.Processor;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
+import static org.elasticsearch.ingest.ConfigurationUtils.newConfigurationException;
+import static org.elasticsearch.ingest.ConfigurationUtils.readBooleanProperty;
+import static org.elasticsearch.ingest.ConfigurationUtils.readIntProperty;
+import static org.elasticsearch.ingest.ConfigurationUtils.readObject;
 import static org.elasticsearch.ingest.ConfigurationUtils.readOptionalList;
 import static org.elasticsearch.ingest.ConfigurationUtils.readOptionalStringProperty;
 import static org.elasticsearch.ingest.ConfigurationUtils.readStringProperty;
@@ -37,55 +48,216 @@ import static org.elasticsearch.ingest.ConfigurationUtils.readStringProperty;
 public class OpenNlpProcessor extends AbstractProcessor {
 
     static final String TYPE = "opennlp";
+    static final int DEFAULT_WINDOW_OVERLAP = 10;
+    // set on documents whose time budget ran out, so that only some of their entities were extracted
+    static final String TRUNCATED_FIELD = "_opennlp.truncated";
 
     private final OpenNlpService openNlpService;
-    private final String sourceField;
+    private final List<String> sourceFields;
     private final String targetField;
     private final String annotatedTextField;
+    private final String offsetsField;
+    private final boolean includeProbability;
+    private final String languageField;
     private final Set<String> fields;
+    private final AnalysisOptions analysisOptions;
+    private final OpenNlpMetrics.ProcessorMetrics metrics;
+    private final ExecutorService executor;
 
-    OpenNlpProcessor(OpenNlpService openNlpService, String tag, String sourceField, String targetField, String annotatedTextField,
-                     Set<String> fields, String description) {
+    /**
+     * @param offsetsField        stores the type and offsets of every entity, or null to store the entity values only
+     * @param includeProbability  whether the probability of every entity is stored along with its offsets
+     * @param executor            runs the documents handed over by the ingest service, or null to run them on the calling thread
+     */
+    OpenNlpProcessor(OpenNlpService openNlpService, String tag, List<String> sourceFields, String targetField,
+                     String annotatedTextField, String offsetsField, boolean includeProbability, String languageField,
+                     Set<String> fields, AnalysisOptions analysisOptions, ExecutorService executor, String description) {
         super(tag, description);
         this.openNlpService = openNlpService;
-        this.sourceField = sourceField;
+        this.sourceFields = sourceFields;
         this.targetField = targetField;
         this.annotatedTextField = annotatedTextField;
+        this.offsetsField = offsetsField;
+        this.includeProbability = includeProbability;
+        this.languageField = languageField;
         this.fields = fields;
+        this.analysisOptions = analysisOptions;
+        this.metrics = openNlpService.getMetrics().processor(tag);
+        this.executor = executor;
     }
 
+    /**
+     * Pipelines only call the asynchronous {@link #execute(IngestDocument, BiConsumer)} of asynchronous processors, which is
+     * needed to run on the plugin thread pool only
+     */
     @Override
-    public IngestDocument execute(IngestDocument ingestDocument) {
-        String content = ingestDocument.getFieldValue(sourceField, String.class);
+    public boolean isAsync() {
+        return executor != null;
+    }
 
-        if (Strings.hasLength(content)) {
-            Map<String, Set<String>> entities = new HashMap<>();
-            mergeExisting(entities, ingestDocument, targetField);
+    /**
+     * Hands the document over to the plugin thread pool, if configured, so that the models do not block the write threads. If
+     * the queue of the pool is full, the document fails with a rejection, which tells clients to back off
+     */
+    @Override
+    public void execute(IngestDocument ingestDocument, BiConsumer<IngestDocument, Exception> handler) {
+        if (executor == null) {
+            executeAndHandle(ingestDocument, handler);
+            return;
+        }
 
-            List<ExtractedEntities> extractedEntities = new ArrayList<>();
-            for (String field : fields) {
-                ExtractedEntities data = openNlpService.find(content, field);
-                extractedEntities.add(data);
-                merge(entities, field, data.getEntityValues());
+        AbstractRunnable runnable = new AbstractRunnable() {
+            @Override
+            protected void doRun() {
+                executeAndHandle(ingestDocument, handler);
             }
 
-            // convert set to list, otherwise toXContent serialization in simulate pipeline fails
-            Map<String, List<String>> entitiesToStore = new HashMap<>();
-            Iterator<Map.Entry<String, Set<String>>> iterator = entities.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry<String, Set<String>> entry = iterator.next();
-                entitiesToStore.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+            @Override
+            public void onRejection(Exception e) {
+                metrics.onRejected();
+                onFailure(e);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                handler.accept(null, e);
+            }
+        };
+        try {
+            executor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            // elasticsearch executors call onRejection themselves, others throw
+            runnable.onRejection(e);
+        }
+    }
+
+    private void executeAndHandle(IngestDocument ingestDocument, BiConsumer<IngestDocument, Exception> handler) {
+        IngestDocument result;
+        try {
+            result = execute(ingestDocument);
+        } catch (Exception e) {
+            handler.accept(null, e);
+            return;
+        }
+        handler.accept(result, null);
+    }
+
+    @Override
+    public IngestDocument execute(IngestDocument ingestDocument) {
+        long start = System.nanoTime();
+        try {
+            doExecute(ingestDocument);
+        } catch (RuntimeException e) {
+            metrics.onFailure();
+            throw e;
+        }
+        metrics.total().record(System.nanoTime() - start);
+        return ingestDocument;
+    }
+
+    private void doExecute(IngestDocument ingestDocument) {
+        List<String> texts = readTexts(ingestDocument);
+
+        if (texts.isEmpty() == false) {
+            // all texts are analysed in one go, every text keeps its own annotated text though
+            int[] parts = new int[texts.size()];
+            String content = OpenNlpService.joinParts(texts, parts);
+
+            Collection<String> models = openNlpService.isLanguageRouted()
+                    ? openNlpService.route(fields, readLanguage(ingestDocument, content))
+                    : fields;
+            Map<String, ExtractedEntities> extractedEntities = openNlpService.find(content, parts, models, analysisOptions, metrics);
+            Map<String, Object> entities = readExisting(ingestDocument, extractedEntities.size());
+            int tokenCount = 0;
+            int entityCount = 0;
+            boolean truncated = false;
+            for (Map.Entry<String, ExtractedEntities> entry : extractedEntities.entrySet()) {
+                List<String> values = entry.getValue().getEntityValues();
+                if (values.isEmpty() == false) {
+                    Object existing = entities.get(entry.getKey());
+                    // a single pre-sized copy, as later processors may modify the list, but the cached values must not change
+                    entities.put(entry.getKey(), existing == null ? new ArrayList<>(values) : merge(existing, values));
+                }
+                tokenCount = entry.getValue().getTokenCount();
+                entityCount += entry.getValue().getSpans().length;
+                truncated |= entry.getValue().isTruncated();
+            }
+            metrics.onDocument(tokenCount, entityCount);
+            if (truncated) {
+                metrics.onBudgetExceeded();
+                ingestDocument.setFieldValue(TRUNCATED_FIELD, true);
             }
 
-            ingestDocument.setFieldValue(targetField, entitiesToStore);
+            ingestDocument.setFieldValue(targetField, entities);
 
             if (Strings.hasLength(annotatedTextField) && extractedEntities.isEmpty() == false) {
-                String annotatedText = OpenNlpService.createAnnotatedText(content, extractedEntities);
-                ingestDocument.setFieldValue(annotatedTextField, annotatedText);
+                long annotatedTextStart = System.nanoTime();
+                List<String> annotatedTexts = OpenNlpService.createAnnotatedText(content, parts, extractedEntities.values());
+                metrics.annotatedText().record(System.nanoTime() - annotatedTextStart);
+                ingestDocument.setFieldValue(annotatedTextField, annotatedTexts.size() == 1 ? annotatedTexts.get(0) : annotatedTexts);
+            }
+
+            if (Strings.hasLength(offsetsField)) {
+                ingestDocument.setFieldValue(offsetsField,
+                        OpenNlpService.createEntityOffsets(parts, extractedEntities, includeProbability));
             }
         }
+    }
 
-        return ingestDocument;
+    /**
+     * Reads the language of the document from the language field, or detects it if the field is not set. The detected
+     * language is stored in the language field, so that other processors of the same pipeline do not detect it again
+     */
+    private String readLanguage(IngestDocument ingestDocument, String content) {
+        if (Strings.hasLength(languageField) && ingestDocument.hasField(languageField)) {
+            Object value = ingestDocument.getFieldValue(languageField, Object.class);
+            if (value instanceof String language) {
+                if (Strings.hasLength(language)) {
+                    return language;
+                }
+            } else if (value != null) {
+                throw new IllegalArgumentException("field [" + languageField + "] of type [" + value.getClass().getName() +
+                        "] cannot be cast to [" + String.class.getName() + "]");
+            }
+        }
+
+        String language = openNlpService.detectLanguage(content, metrics);
+        if (language != null && Strings.hasLength(languageField)) {
+            ingestDocument.setFieldValue(languageField, language);
+        }
+        return language;
+    }
+
+    /**
+     * Reads the non empty texts of all source fields in order, a field can contain a string or a list of strings
+     */
+    private List<String> readTexts(IngestDocument ingestDocument) {
+        List<String> texts = new ArrayList<>(sourceFields.size());
+        for (String sourceField : sourceFields) {
+            Object value = ingestDocument.getFieldValue(sourceField, Object.class);
+            if (value instanceof List<?> values) {
+                for (Object element : values) {
+                    addText(texts, sourceField, element);
+                }
+            } else {
+                addText(texts, sourceField, value);
+            }
+        }
+        return texts;
+    }
+
+    private static void addText(List<String> texts, String sourceField, Object value) {
+        if (value == null) {
+            return;
+        }
+        if (value instanceof String text) {
+            if (Strings.hasLength(text)) {
+                texts.add(text);
+            }
+        } else {
+            throw new IllegalArgumentException("field [" + sourceField + "] of type [" + value.getClass().getName() +
+                    "] cannot be cast to [" + String.class.getName() + "]");
+        }
     }
 
     @Override
@@ -96,40 +268,151 @@ public class OpenNlpProcessor extends AbstractProcessor {
     public static final class Factory implements Processor.Factory {
 
         private OpenNlpService openNlpService;
+        private final Supplier<ExecutorService> executor;
 
         Factory(OpenNlpService openNlpService) {
+            this(openNlpService, () -> null);
+        }
+
+        /**
+         * @param executor  supplies the executor the processors run on, which is only available once the node has started
+         */
+        Factory(OpenNlpService openNlpService, Supplier<ExecutorService> executor) {
             this.openNlpService = openNlpService;
+            this.executor = executor;
         }
 
         @Override
         public OpenNlpProcessor create(Map<String, Processor.Factory> registry, String processorTag, String description,
                                        Map<String, Object> config) {
-            String field = readStringProperty(TYPE, processorTag, config, "field");
+            List<String> sourceFields = readSourceFields(processorTag, config);
             String targetField = readStringProperty(TYPE, processorTag, config, "target_field", "entities");
             String annotatedTextField = readOptionalStringProperty(TYPE, processorTag, config, "annotated_text_field");
+            String offsetsField = readOptionalStringProperty(TYPE, processorTag, config, "offsets_field");
+            boolean includeProbability = readBooleanProperty(TYPE, processorTag, config, "include_probability", false);
+            String languageField = readOptionalStringProperty(TYPE, processorTag, config, "language_field");
             List<String> fields = readOptionalList(TYPE, processorTag, config, "fields");
             final Set<String> foundFields = fields == null || fields.size() == 0 ? openNlpService.getModels() : new HashSet<>(fields);
-            return new OpenNlpProcessor(openNlpService, processorTag, field, targetField, annotatedTextField, foundFields, description);
+            AnalysisOptions analysisOptions = readAnalysisOptions(processorTag, config, openNlpService.hasTokenizerModel());
+            // the entries of dictionaries are tokenized with the simple tokenizer, other tokenizers would miss some of them
+            if (OffsetTokenizer.SIMPLE.equals(analysisOptions.getTokenizer()) == false) {
+                for (String field : foundFields) {
+                    if (openNlpService.isDictionary(field)) {
+                        throw newConfigurationException(TYPE, processorTag, "tokenizer", "must be [" + OffsetTokenizer.SIMPLE
+                                + "] to find the entries of dictionary [" + field + "], but was ["
+                                + analysisOptions.getTokenizer() + "]");
+                    }
+                }
+            }
+            return new OpenNlpProcessor(openNlpService, processorTag, sourceFields, targetField, annotatedTextField, offsetsField,
+                    includeProbability, languageField, foundFields, analysisOptions, executor.get(), description);
+        }
+
+        // the field can be a single field or a list of fields
+        private static List<String> readSourceFields(String processorTag, Map<String, Object> config) {
+            Object field = readObject(TYPE, processorTag, config, "field");
+            List<?> fields = field instanceof List<?> list ? list : List.of(field);
+            if (fields.isEmpty()) {
+                throw newConfigurationException(TYPE, processorTag, "field", "must contain at least one field");
+            }
+            List<String> sourceFields = new ArrayList<>(fields.size());
+            for (Object value : fields) {
+                if (value instanceof String sourceField) {
+                    sourceFields.add(sourceField);
+                } else {
+                    throw newConfigurationException(TYPE, processorTag, "field", "must be a string or a list of strings");
+                }
+            }
+            return sourceFields;
+        }
+
+        private static AnalysisOptions readAnalysisOptions(String processorTag, Map<String, Object> config,
+                                                           boolean hasTokenizerModel) {
+            int maxContentLength = readPositiveIntProperty(processorTag, config, "max_content_length", Integer.MAX_VALUE);
+            int maxTokens = readPositiveIntProperty(processorTag, config, "max_tokens", Integer.MAX_VALUE);
+            int windowSize = readPositiveIntProperty(processorTag, config, "window_size", 0);
+            int windowOverlap = readIntProperty(TYPE, processorTag, config, "window_overlap", DEFAULT_WINDOW_OVERLAP);
+            if (windowSize > 0 && (windowOverlap < 0 || windowOverlap >= windowSize)) {
+                throw newConfigurationException(TYPE, processorTag, "window_overlap",
+                        "must be between 0 and window_size [" + windowSize + "], but was [" + windowOverlap + "]");
+            }
+            TimeValue timeBudget = readTimeBudget(processorTag, config);
+            String tokenizer = readTokenizer(processorTag, config, hasTokenizerModel);
+            return new AnalysisOptions(maxContentLength, maxTokens, windowSize, windowSize > 0 ? windowOverlap : 0, timeBudget,
+                    tokenizer);
+        }
+
+        private static String readTokenizer(String processorTag, Map<String, Object> config, boolean hasTokenizerModel) {
+            String tokenizer = readStringProperty(TYPE, processorTag, config, "tokenizer", OffsetTokenizer.SIMPLE);
+            if (OffsetTokenizer.NAMES.contains(tokenizer) == false) {
+                throw newConfigurationException(TYPE, processorTag, "tokenizer",
+                        "must be one of " + OffsetTokenizer.NAMES + ", but was [" + tokenizer + "]");
+            }
+            if (OffsetTokenizer.MODEL.equals(tokenizer) && hasTokenizerModel == false) {
+                throw newConfigurationException(TYPE, processorTag, "tokenizer",
+                        "requires [" + IngestOpenNlpPlugin.TOKENIZER_MODEL_FILE_SETTING.getKey() + "] to be configured");
+            }
+            return tokenizer;
+        }
+
+        private static TimeValue readTimeBudget(String processorTag, Map<String, Object> config) {
+            String value = readOptionalStringProperty(TYPE, processorTag, config, "time_budget");
+            if (value == null) {
+                return TimeValue.ZERO;
+            }
+            TimeValue timeBudget;
+            try {
+                timeBudget = TimeValue.parseTimeValue(value, "time_budget");
+            } catch (IllegalArgumentException e) {
+                throw newConfigurationException(TYPE, processorTag, "time_budget", e.getMessage());
+            }
+            if (timeBudget.nanos() <= 0) {
+                throw newConfigurationException(TYPE, processorTag, "time_budget", "must be greater than 0, but was [" + value + "]");
+            }
+            return timeBudget;
+        }
+
+        private static int readPositiveIntProperty(String processorTag, Map<String, Object> config, String property,
+                                                   int defaultValue) {
+            Integer value = readIntProperty(TYPE, processorTag, config, property, null);
+            if (value == null) {
+                return defaultValue;
+            }
+            if (value <= 0) {
+                throw newConfigurationException(TYPE, processorTag, property, "must be greater than 0, but was [" + value + "]");
+            }
+            return value;
         }
     }
 
-    private static void mergeExisting(Map<String, Set<String>> entities, IngestDocument ingestDocument, String targetField) {
-        if (ingestDocument.hasField(targetField)) {
-            @SuppressWarnings("unchecked")
-            Map<String, Set<String>> existing = ingestDocument.getFieldValue(targetField, Map.class);
-            entities.putAll(existing);
-        } else {
-            ingestDocument.setFieldValue(targetField, entities);
+    /**
+     * Returns a copy of the entities already stored in the target field, i.e. by a previous processor, sized to take the
+     * entities of all models
+     */
+    private Map<String, Object> readExisting(IngestDocument ingestDocument, int models) {
+        if (ingestDocument.hasField(targetField) == false) {
+            return new HashMap<>(capacity(models));
         }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> existing = ingestDocument.getFieldValue(targetField, Map.class);
+        Map<String, Object> entities = new HashMap<>(capacity(existing.size() + models));
+        entities.putAll(existing);
+        return entities;
     }
 
-    private static void merge(Map<String, Set<String>> map, String key, Set<String> values) {
-        if (values.size() == 0) return;
+    private static int capacity(int size) {
+        return (int) (size / 0.75f) + 1;
+    }
 
-        if (map.containsKey(key)) {
-            values.addAll(map.get(key));
+    /**
+     * Adds the values not stored already to the existing ones, keeping the existing values first
+     */
+    private static List<String> merge(Object existing, List<String> values) {
+        Set<String> merged = new LinkedHashSet<>();
+        for (Object value : (Collection<?>) existing) {
+            merged.add((String) value);
         }
-
-        map.put(key, values);
+        merged.addAll(values);
+        return new ArrayList<>(merged);
     }
 }
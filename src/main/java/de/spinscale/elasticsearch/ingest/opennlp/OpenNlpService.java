@@ -17,152 +17,1216 @@
 
 package de.spinscale.elasticsearch.ingest.opennlp;
 
+import opennlp.tools.langdetect.LanguageDetectorME;
+import opennlp.tools.langdetect.LanguageDetectorModel;
 import opennlp.tools.namefind.NameFinderME;
+import opennlp.tools.namefind.TokenNameFinder;
 import opennlp.tools.namefind.TokenNameFinderModel;
-import opennlp.tools.tokenize.SimpleTokenizer;
+import opennlp.tools.sentdetect.SentenceDetectorME;
+import opennlp.tools.sentdetect.SentenceModel;
+import opennlp.tools.tokenize.TokenizerME;
+import opennlp.tools.tokenize.TokenizerModel;
 import opennlp.tools.util.Span;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.lucene.util.InPlaceMergeSorter;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.common.StopWatch;
 import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.cache.Cache;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.core.Tuple;
 
+import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * OpenNLP name finders are not thread safe, so we load them via a thread local hack
+ * OpenNLP name finders are not thread safe, so every thread keeps its own name finder per model. Models can be replaced
+ * at runtime, each thread creates a new name finder once it sees a replaced model
  */
-public class OpenNlpService {
+public class OpenNlpService implements Closeable {
 
     private static final Logger logger = LogManager.getLogger(OpenNlpService.class);
+    // collects the tokenization times of callers other than processors, which are not exposed anywhere
+    private static final OpenNlpMetrics.ProcessorMetrics UNTRACKED = new OpenNlpMetrics.ProcessorMetrics();
+    // separates the texts of several fields, the tokenizer never creates a token spanning it
+    static final String PART_SEPARATOR = "\n";
+    private static final int[] SINGLE_PART = new int[] { 0 };
     private final Path configDirectory;
     private Settings settings;
+    private final Set<String> modelNames;
+    private final Map<String, ModelFilter> filters;
+    private final Map<String, Set<String>> languages;
+    private final OpenNlpMetrics metrics = new OpenNlpMetrics();
 
-    private ThreadLocal<TokenNameFinderModel> threadLocal = new ThreadLocal<>();
+    private final ThreadLocal<Map<String, Tuple<TokenNameFinderModel, NameFinderME>>> nameFinders =
+            ThreadLocal.withInitial(HashMap::new);
+    private final LongAdder createdNameFinders = new LongAdder();
     private Map<String, TokenNameFinderModel> nameFinderModels = new ConcurrentHashMap<>();
+    private final Map<String, DictionaryNameFinder> dictionaries = new ConcurrentHashMap<>();
+    private final Map<String, PatternNameFinder> patterns = new ConcurrentHashMap<>();
+    private volatile SentenceModel sentenceModel;
+    private final ThreadLocal<Tuple<SentenceModel, SentenceDetectorME>> sentenceDetectors = new ThreadLocal<>();
+    private volatile TokenizerModel tokenizerModel;
+    private final ThreadLocal<Tuple<TokenizerModel, TokenizerME>> tokenizers = new ThreadLocal<>();
+    private volatile LanguageDetectorModel languageModel;
+    private final ThreadLocal<Tuple<LanguageDetectorModel, LanguageDetectorME>> languageDetectors = new ThreadLocal<>();
+    private final int languageMaxContentLength;
+    private final boolean compileOnLoad;
+    private ForkJoinPool parallelPool;
+    private int parallelMinContentLength;
+    private ResultCache resultCache;
+    private volatile Thread warmUpThread;
 
     OpenNlpService(Path configDirectory, Settings settings) {
         this.configDirectory = configDirectory;
         this.settings = settings;
+        Set<String> modelNames = new HashSet<>(IngestOpenNlpPlugin.MODEL_FILE_SETTINGS.getAsMap(settings).keySet());
+        for (String dictionary : IngestOpenNlpPlugin.DICTIONARY_FILE_SETTINGS.getAsMap(settings).keySet()) {
+            if (modelNames.add(dictionary) == false) {
+                throw new ElasticsearchException("dictionary [{}] has the same name as a model", dictionary);
+            }
+        }
+        for (String pattern : IngestOpenNlpPlugin.PATTERN_FILE_SETTINGS.getAsMap(settings).keySet()) {
+            if (modelNames.add(pattern) == false) {
+                throw new ElasticsearchException("pattern [{}] has the same name as a model or dictionary", pattern);
+            }
+        }
+        this.modelNames = Collections.unmodifiableSet(modelNames);
+
+        Set<String> filtered = new HashSet<>(IngestOpenNlpPlugin.FILTER_CAPITALIZED_SETTING.getAsMap(settings).keySet());
+        filtered.addAll(IngestOpenNlpPlugin.FILTER_MIN_TOKENS_SETTING.getAsMap(settings).keySet());
+        filtered.addAll(IngestOpenNlpPlugin.FILTER_MIN_LETTER_RATIO_SETTING.getAsMap(settings).keySet());
+        Map<String, List<String>> languagesMap = IngestOpenNlpPlugin.FILTER_LANGUAGES_SETTING.getAsMap(settings);
+        filtered.addAll(languagesMap.keySet());
+        Map<String, ModelFilter> filters = new HashMap<>();
+        for (String model : filtered) {
+            if (modelNames.contains(model) == false) {
+                throw new ElasticsearchException("filter configured for unknown model [{}], possible values {}", model, modelNames);
+            }
+            ModelFilter filter = ModelFilter.create(model, settings);
+            if (filter != null) {
+                filters.put(model, filter);
+            }
+        }
+        this.filters = Collections.unmodifiableMap(filters);
+
+        Map<String, Set<String>> languages = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : languagesMap.entrySet()) {
+            if (entry.getValue().isEmpty() == false) {
+                languages.put(entry.getKey(), Set.copyOf(entry.getValue()));
+            }
+        }
+        this.languages = Collections.unmodifiableMap(languages);
+        this.languageMaxContentLength = IngestOpenNlpPlugin.LANGUAGE_MAX_CONTENT_LENGTH_SETTING.get(settings);
+        this.compileOnLoad = IngestOpenNlpPlugin.MODEL_COMPILE_ON_LOAD_SETTING.get(settings);
+    }
+
+    OpenNlpMetrics getMetrics() {
+        return metrics;
     }
 
     Set<String> getModels() {
-        return IngestOpenNlpPlugin.MODEL_FILE_SETTINGS.getAsMap(settings).keySet();
+        return modelNames;
+    }
+
+    boolean isDictionary(String name) {
+        return IngestOpenNlpPlugin.DICTIONARY_FILE_SETTINGS.getAsMap(settings).containsKey(name);
     }
 
     protected OpenNlpService start() {
         StopWatch sw = new StopWatch("models-loading");
         Map<String, String> settingsMap = IngestOpenNlpPlugin.MODEL_FILE_SETTINGS.getAsMap(settings);
-        for (Map.Entry<String, String> entry : settingsMap.entrySet()) {
-            String name = entry.getKey();
-            sw.start(name);
-            Path path = configDirectory.resolve(entry.getValue());
-            try (InputStream is = Files.newInputStream(path)) {
-                nameFinderModels.put(name, new TokenNameFinderModel(is));
+        boolean lazy = IngestOpenNlpPlugin.MODEL_LAZY_LOADING_SETTING.get(settings);
+        Map<String, TimeValue> loadingTimes = Collections.emptyMap();
+        if (lazy == false) {
+            sw.start("name-finders");
+            loadingTimes = loadNameFinderModels(settingsMap);
+            sw.stop();
+        }
+
+        Map<String, String> dictionaryFiles = IngestOpenNlpPlugin.DICTIONARY_FILE_SETTINGS.getAsMap(settings);
+        for (Map.Entry<String, String> entry : dictionaryFiles.entrySet()) {
+            sw.start(entry.getKey());
+            try {
+                dictionaries.put(entry.getKey(), DictionaryNameFinder.load(configDirectory.resolve(entry.getValue()), entry.getKey()));
+            } catch (IOException e) {
+                throw new ElasticsearchException(e);
+            }
+            sw.stop();
+            DictionaryNameFinder dictionary = dictionaries.get(entry.getKey());
+            logger.info("Read dictionary [{}] with [{}] entries using [{}] in [{}]", entry.getKey(), dictionary.getEntryCount(),
+                    ByteSizeValue.ofBytes(dictionary.ramBytesUsed()), sw.lastTaskTime());
+        }
+
+        Map<String, String> patternFiles = IngestOpenNlpPlugin.PATTERN_FILE_SETTINGS.getAsMap(settings);
+        for (Map.Entry<String, String> entry : patternFiles.entrySet()) {
+            try {
+                patterns.put(entry.getKey(), PatternNameFinder.load(configDirectory.resolve(entry.getValue()), entry.getKey()));
+            } catch (IOException e) {
+                throw new ElasticsearchException(e);
+            }
+            logger.info("Read [{}] patterns for [{}]", patterns.get(entry.getKey()).getPatternCount(), entry.getKey());
+        }
+
+        String sentenceModelFile = IngestOpenNlpPlugin.SENTENCE_MODEL_FILE_SETTING.get(settings);
+        if (Strings.hasLength(sentenceModelFile)) {
+            sw.start("sentences");
+            try {
+                sentenceModel = loadSentenceModel(configDirectory.resolve(sentenceModelFile));
             } catch (IOException e) {
-                // this means a broken configuration, throw an exception and exit
-                // otherwise users will ask why enrichment does not work
                 throw new ElasticsearchException(e);
             }
             sw.stop();
+            logger.info("Read sentence model [{}] in [{}]", sentenceModelFile, sw.lastTaskTime());
         }
 
-        if (settingsMap.keySet().size() == 0) {
+        String tokenizerModelFile = IngestOpenNlpPlugin.TOKENIZER_MODEL_FILE_SETTING.get(settings);
+        if (Strings.hasLength(tokenizerModelFile)) {
+            sw.start("tokenizer");
+            try {
+                tokenizerModel = loadTokenizerModel(configDirectory.resolve(tokenizerModelFile));
+            } catch (IOException e) {
+                throw new ElasticsearchException(e);
+            }
+            sw.stop();
+            logger.info("Read tokenizer model [{}] in [{}]", tokenizerModelFile, sw.lastTaskTime());
+        }
+
+        String languageModelFile = IngestOpenNlpPlugin.LANGUAGE_MODEL_FILE_SETTING.get(settings);
+        if (Strings.hasLength(languageModelFile)) {
+            sw.start("languages");
+            try {
+                languageModel = loadLanguageModel(configDirectory.resolve(languageModelFile));
+            } catch (IOException e) {
+                throw new ElasticsearchException(e);
+            }
+            sw.stop();
+            logger.info("Read language detection model [{}] in [{}]", languageModelFile, sw.lastTaskTime());
+        }
+
+        int parallelThreads = IngestOpenNlpPlugin.PARALLEL_THREADS_SETTING.get(settings);
+        if (parallelThreads > 0) {
+            parallelPool = newParallelPool(parallelThreads);
+            parallelMinContentLength = IngestOpenNlpPlugin.PARALLEL_MIN_CONTENT_LENGTH_SETTING.get(settings);
+        }
+
+        ByteSizeValue cacheSize = IngestOpenNlpPlugin.CACHE_SIZE_SETTING.get(settings);
+        if (cacheSize.getBytes() > 0) {
+            resultCache = new ResultCache(cacheSize, IngestOpenNlpPlugin.CACHE_EXPIRE_SETTING.get(settings));
+        }
+
+        if (modelNames.isEmpty()) {
             logger.error("Did not load any models for ingest-opennlp plugin, none configured");
+        } else if (settingsMap.isEmpty()) {
+            // only dictionaries and patterns, which have been logged already
+        } else if (lazy) {
+            logger.info("Models {} will be read on first use", settingsMap.keySet());
         } else {
-            logger.info("Read models in [{}] for {}", sw.totalTime(), settingsMap.keySet());
+            logger.info("Read models in [{}] for {}", sw.totalTime(), loadingTimes);
+        }
+
+        if (IngestOpenNlpPlugin.WARMUP_ENABLED_SETTING.get(settings) && modelNames.isEmpty() == false) {
+            startWarmUp();
         }
 
         return this;
     }
 
-    public ExtractedEntities find(String content, String field) {
-        try {
-            if (!nameFinderModels.containsKey(field)) {
-                throw new ElasticsearchException("Could not find field [{}], possible values {}", field, nameFinderModels.keySet());
+    /**
+     * Warms up the models on a background thread, so that startup is not delayed. Documents arriving in the meantime are
+     * processed as usual, just slower until the models have been compiled
+     */
+    private void startWarmUp() {
+        List<String> corpus;
+        String corpusFile = IngestOpenNlpPlugin.WARMUP_CORPUS_FILE_SETTING.get(settings);
+        if (Strings.hasLength(corpusFile)) {
+            try {
+                corpus = WarmUpCorpus.read(configDirectory.resolve(corpusFile));
+            } catch (IOException e) {
+                throw new ElasticsearchException(e);
+            }
+            if (corpus.isEmpty()) {
+                throw new ElasticsearchException("warm-up corpus [{}] does not contain any documents", corpusFile);
             }
-            TokenNameFinderModel finderModel = nameFinderModels.get(field);
-            if (threadLocal.get() == null || !threadLocal.get().equals(finderModel)) {
-                threadLocal.set(finderModel);
+        } else {
+            corpus = WarmUpCorpus.synthetic();
+        }
+
+        TimeValue timeLimit = IngestOpenNlpPlugin.WARMUP_TIME_LIMIT_SETTING.get(settings);
+        int maxDocuments = IngestOpenNlpPlugin.WARMUP_MAX_DOCUMENTS_SETTING.get(settings);
+        warmUpThread = EsExecutors.daemonThreadFactory(settings, "opennlp_warmup").newThread(() -> {
+            try {
+                warmUp(corpus, timeLimit, maxDocuments);
+            } catch (Exception e) {
+                logger.warn("Could not warm up models", e);
             }
+        });
+        warmUpThread.start();
+    }
 
-            String[] tokens = SimpleTokenizer.INSTANCE.tokenize(content);
-            Span[] spans = new NameFinderME(finderModel).find(tokens);
+    /**
+     * Runs the corpus through all models read so far, repeating it until the maximum number of documents is processed or
+     * the time limit is reached. Neither the result cache nor the metrics of the node see these documents
+     *
+     * @return the number of processed documents
+     */
+    int warmUp(List<String> corpus, TimeValue timeLimit, int maxDocuments) {
+        List<String> fields = new ArrayList<>(modelNames.size());
+        for (String name : modelNames) {
+            // models read on first use are not read just to warm them up
+            if (nameFinderModels.containsKey(name) || dictionaries.containsKey(name) || patterns.containsKey(name)) {
+                fields.add(name);
+            }
+        }
+        if (fields.isEmpty() && languageModel == null) {
+            logger.info("Skipping warm-up, no models have been read yet");
+            return 0;
+        }
 
-            return new ExtractedEntities(tokens, spans);
+        // processors can use the tokenizer model instead of the built-in tokenizer, so both are warmed up
+        List<AnalysisOptions> options = new ArrayList<>(2);
+        options.add(AnalysisOptions.DEFAULT);
+        if (tokenizerModel != null) {
+            options.add(new AnalysisOptions(Integer.MAX_VALUE, Integer.MAX_VALUE, 0, 0, TimeValue.ZERO, OffsetTokenizer.MODEL));
+        }
+
+        OpenNlpMetrics warmUpMetrics = new OpenNlpMetrics();
+        long start = System.nanoTime();
+        long deadline = start + timeLimit.nanos();
+        int documents = 0;
+        while (documents < maxDocuments && System.nanoTime() < deadline) {
+            if (Thread.currentThread().isInterrupted()) {
+                logger.debug("Stopped warm-up after [{}] documents, the service was closed", documents);
+                return documents;
+            }
+            String content = corpus.get(documents % corpus.size());
+            detectLanguage(content, UNTRACKED);
+            if (fields.isEmpty() == false) {
+                extract(content, SINGLE_PART, fields, options.get(documents % options.size()), UNTRACKED, warmUpMetrics);
+            }
+            documents++;
+        }
+
+        TimeValue took = TimeValue.timeValueNanos(System.nanoTime() - start);
+        if (documents < maxDocuments) {
+            logger.info("Warmed up models {} with [{}] documents in [{}], stopped at the time limit of [{}]", fields, documents, took,
+                    timeLimit);
+        } else {
+            logger.info("Warmed up models {} with [{}] documents in [{}]", fields, documents, took);
+        }
+        return documents;
+    }
+
+    Thread getWarmUpThread() {
+        return warmUpThread;
+    }
+
+    /**
+     * Reads the models in parallel, returning the time it took to read each model
+     */
+    private Map<String, TimeValue> loadNameFinderModels(Map<String, String> modelFiles) {
+        Map<String, TimeValue> loadingTimes = new LinkedHashMap<>(modelFiles.size());
+        int threads = Math.min(IngestOpenNlpPlugin.MODEL_LOADING_THREADS_SETTING.get(settings), modelFiles.size());
+        if (threads <= 1) {
+            for (Map.Entry<String, String> entry : modelFiles.entrySet()) {
+                loadingTimes.put(entry.getKey(), loadNameFinderModel(entry.getKey(), entry.getValue()));
+            }
+            return loadingTimes;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                EsExecutors.daemonThreadFactory(settings, "opennlp_model_loading"));
+        try {
+            Map<String, Future<TimeValue>> futures = new LinkedHashMap<>(modelFiles.size());
+            for (Map.Entry<String, String> entry : modelFiles.entrySet()) {
+                futures.put(entry.getKey(), executor.submit(() -> loadNameFinderModel(entry.getKey(), entry.getValue())));
+            }
+            for (Map.Entry<String, Future<TimeValue>> entry : futures.entrySet()) {
+                loadingTimes.put(entry.getKey(), entry.getValue().get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ElasticsearchException elasticsearchException) {
+                throw elasticsearchException;
+            }
+            throw new ElasticsearchException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ElasticsearchException(e);
         } finally {
-            threadLocal.remove();
+            executor.shutdownNow();
+        }
+
+        return loadingTimes;
+    }
+
+    private TimeValue loadNameFinderModel(String name, String file) {
+        StopWatch sw = new StopWatch("model-loading").start(name);
+        try {
+            nameFinderModels.put(name, loadNameFinderModel(configDirectory.resolve(file)));
+        } catch (IOException e) {
+            // this means a broken configuration, throw an exception and exit
+            // otherwise users will ask why enrichment does not work
+            throw new ElasticsearchException(e);
+        }
+        return sw.stop().totalTime();
+    }
+
+    private TokenNameFinderModel loadNameFinderModel(Path path) throws IOException {
+        if (MappedNameFinderModel.isMappedModel(path)) {
+            return MappedNameFinderModel.load(path);
+        }
+        try (InputStream is = new BufferedInputStream(Files.newInputStream(path))) {
+            if (compileOnLoad) {
+                return new CompiledNameFinderModel(is);
+            }
+            return new TokenNameFinderModel(is);
         }
     }
 
-    static String createAnnotatedText(String content, List<ExtractedEntities> extractedEntities) {
-        // these spans contain the real offset of each word in start/end variables!
-        // the spans of the method argument contain the offset of each token, as mentioned in tokens!
-        Span[] spansWithRealOffsets = SimpleTokenizer.INSTANCE.tokenizePos(content);
+    private static SentenceModel loadSentenceModel(Path path) throws IOException {
+        try (InputStream is = new BufferedInputStream(Files.newInputStream(path))) {
+            return new SentenceModel(is);
+        }
+    }
+
+    private static TokenizerModel loadTokenizerModel(Path path) throws IOException {
+        try (InputStream is = new BufferedInputStream(Files.newInputStream(path))) {
+            return new TokenizerModel(is);
+        }
+    }
 
-        List<Span> spansList = new ArrayList<>();
-        extractedEntities.stream()
-                .map(ExtractedEntities::getSpans)
-                .forEach(s -> spansList.addAll(Arrays.asList(s)));
+    private static LanguageDetectorModel loadLanguageModel(Path path) throws IOException {
+        try (InputStream is = new BufferedInputStream(Files.newInputStream(path))) {
+            return new LanguageDetectorModel(is);
+        }
+    }
 
-        Span[] spans = NameFinderME.dropOverlappingSpans(spansList.toArray(new Span[0]));
-        String[] tokens = extractedEntities.get(0).getTokens();
+    /**
+     * Returns the current model, reading it first if models are loaded lazily. Other threads using the same model wait
+     * until it has been read
+     */
+    private TokenNameFinderModel getNameFinderModel(String name) {
+        TokenNameFinderModel model = nameFinderModels.get(name);
+        if (model != null) {
+            return model;
+        }
 
-        // shortcut if there is no enrichment to be done
-        if (spans.length == 0) {
-            return content;
-        }
-
-        StringBuilder builder = new StringBuilder();
-        for (int i = 0; i < tokens.length; i++) {
-            final int idx = i;
-            String token = tokens[i];
-
-            final Optional<Span> optionalSpan = Arrays.stream(spans).filter(s -> s.getStart() == idx).findFirst();
-            if (optionalSpan.isPresent()) {
-                Span span = optionalSpan.get();
-                int start = span.getStart();
-                int end = span.getEnd();
-                String type = span.getType();
-
-                String[] spanTokens = new String[end - start];
-                int spanPosition = 0;
-                for (int tokenPosition = start ; tokenPosition < end; tokenPosition++) {
-                    spanTokens[spanPosition++] = tokens[tokenPosition];
+        return nameFinderModels.computeIfAbsent(name, key -> {
+            String file = IngestOpenNlpPlugin.MODEL_FILE_SETTINGS.getAsMap(settings).get(key);
+            StopWatch sw = new StopWatch("model-loading").start(key);
+            try {
+                TokenNameFinderModel loaded = loadNameFinderModel(configDirectory.resolve(file));
+                logger.info("Read model [{}] on first use in [{}]", key, sw.stop().totalTime());
+                return loaded;
+            } catch (IOException e) {
+                throw new ElasticsearchException(e);
+            }
+        });
+    }
+
+    /**
+     * Loads all models configured to be read from the given file again. A model is only swapped in once it was loaded
+     * completely, documents being processed at that time finish with the previous model. If loading fails, i.e. because
+     * the file was not written completely yet, the previous model is kept
+     */
+    void reload(Path file) {
+        Path changedFile = file.toAbsolutePath().normalize();
+        boolean reloaded = false;
+
+        Map<String, String> settingsMap = IngestOpenNlpPlugin.MODEL_FILE_SETTINGS.getAsMap(settings);
+        for (Map.Entry<String, String> entry : settingsMap.entrySet()) {
+            if (isSameFile(entry.getValue(), changedFile)) {
+                StopWatch sw = new StopWatch("model-reloading").start(entry.getKey());
+                try {
+                    nameFinderModels.put(entry.getKey(), loadNameFinderModel(changedFile));
+                    reloaded = true;
+                    logger.info("Reloaded model [{}] from [{}] in [{}]", entry.getKey(), changedFile, sw.stop().totalTime());
+                } catch (Exception e) {
+                    logger.warn("Could not reload model [{}] from [{}], keeping the previous one", entry.getKey(), changedFile, e);
                 }
-                String entityString = Strings.arrayToDelimitedString(spanTokens, " ");
-
-                builder.append("[");
-                builder.append(entityString);
-                builder.append("](");
-                builder.append(Strings.capitalize(type));
-                builder.append("_");
-                builder.append(entityString);
-                builder.append(")");
-                i = end - 1;
+            }
+        }
+
+        Map<String, String> dictionaryFiles = IngestOpenNlpPlugin.DICTIONARY_FILE_SETTINGS.getAsMap(settings);
+        for (Map.Entry<String, String> entry : dictionaryFiles.entrySet()) {
+            if (isSameFile(entry.getValue(), changedFile)) {
+                StopWatch sw = new StopWatch("dictionary-reloading").start(entry.getKey());
+                try {
+                    dictionaries.put(entry.getKey(), DictionaryNameFinder.load(changedFile, entry.getKey()));
+                    reloaded = true;
+                    logger.info("Reloaded dictionary [{}] from [{}] in [{}]", entry.getKey(), changedFile, sw.stop().totalTime());
+                } catch (Exception e) {
+                    logger.warn("Could not reload dictionary [{}] from [{}], keeping the previous one", entry.getKey(), changedFile, e);
+                }
+            }
+        }
+
+        Map<String, String> patternFiles = IngestOpenNlpPlugin.PATTERN_FILE_SETTINGS.getAsMap(settings);
+        for (Map.Entry<String, String> entry : patternFiles.entrySet()) {
+            if (isSameFile(entry.getValue(), changedFile)) {
+                try {
+                    patterns.put(entry.getKey(), PatternNameFinder.load(changedFile, entry.getKey()));
+                    reloaded = true;
+                    logger.info("Reloaded patterns [{}] from [{}]", entry.getKey(), changedFile);
+                } catch (Exception e) {
+                    logger.warn("Could not reload patterns [{}] from [{}], keeping the previous ones", entry.getKey(), changedFile, e);
+                }
+            }
+        }
+
+        String sentenceModelFile = IngestOpenNlpPlugin.SENTENCE_MODEL_FILE_SETTING.get(settings);
+        if (Strings.hasLength(sentenceModelFile) && isSameFile(sentenceModelFile, changedFile)) {
+            try {
+                sentenceModel = loadSentenceModel(changedFile);
+                reloaded = true;
+                logger.info("Reloaded sentence model from [{}]", changedFile);
+            } catch (Exception e) {
+                logger.warn("Could not reload sentence model from [{}], keeping the previous one", changedFile, e);
+            }
+        }
+
+        String tokenizerModelFile = IngestOpenNlpPlugin.TOKENIZER_MODEL_FILE_SETTING.get(settings);
+        if (Strings.hasLength(tokenizerModelFile) && isSameFile(tokenizerModelFile, changedFile)) {
+            try {
+                tokenizerModel = loadTokenizerModel(changedFile);
+                reloaded = true;
+                logger.info("Reloaded tokenizer model from [{}]", changedFile);
+            } catch (Exception e) {
+                logger.warn("Could not reload tokenizer model from [{}], keeping the previous one", changedFile, e);
+            }
+        }
+
+        String languageModelFile = IngestOpenNlpPlugin.LANGUAGE_MODEL_FILE_SETTING.get(settings);
+        if (Strings.hasLength(languageModelFile) && isSameFile(languageModelFile, changedFile)) {
+            try {
+                languageModel = loadLanguageModel(changedFile);
+                logger.info("Reloaded language detection model from [{}]", changedFile);
+            } catch (Exception e) {
+                logger.warn("Could not reload language detection model from [{}], keeping the previous one", changedFile, e);
+            }
+        }
+
+        if (reloaded && resultCache != null) {
+            resultCache.invalidateAll();
+        }
+    }
+
+    private boolean isSameFile(String configuredFile, Path file) {
+        return configDirectory.resolve(configuredFile).toAbsolutePath().normalize().equals(file);
+    }
+
+    Path getConfigDirectory() {
+        return configDirectory;
+    }
+
+    private ForkJoinPool newParallelPool(int parallelism) {
+        String threadName = EsExecutors.threadName(settings, "opennlp_parallel");
+        return new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName(threadName + "[T#" + thread.getPoolIndex() + "]");
+            return thread;
+        }, null, false);
+    }
+
+    @Override
+    public void close() {
+        Thread warmUp = warmUpThread;
+        if (warmUp != null) {
+            warmUp.interrupt();
+        }
+        if (parallelPool != null) {
+            parallelPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns true if any model only runs for documents in certain languages, otherwise the language of a document does not
+     * need to be known
+     */
+    boolean isLanguageRouted() {
+        return languages.isEmpty() == false;
+    }
+
+    /**
+     * Detects the language of the beginning of the content, returns null if no language detection model is configured
+     */
+    String detectLanguage(String content, OpenNlpMetrics.ProcessorMetrics processorMetrics) {
+        LanguageDetectorModel model = languageModel;
+        if (model == null) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        Tuple<LanguageDetectorModel, LanguageDetectorME> languageDetector = languageDetectors.get();
+        if (languageDetector == null || languageDetector.v1() != model) {
+            languageDetector = Tuple.tuple(model, new LanguageDetectorME(model));
+            languageDetectors.set(languageDetector);
+        }
+        CharSequence text = content.length() > languageMaxContentLength ? content.subSequence(0, languageMaxContentLength) : content;
+        String language = languageDetector.v2().predictLanguage(text).getLang();
+        processorMetrics.languageDetection().record(System.nanoTime() - start);
+        return language;
+    }
+
+    /**
+     * Returns the models to run for a document in the given language, models without languages run for all documents. If
+     * the language is not known, all models run. The models not returned count the document as skipped
+     */
+    Collection<String> route(Collection<String> fields, String language) {
+        if (language == null || languages.isEmpty()) {
+            return fields;
+        }
+
+        List<String> routed = new ArrayList<>(fields.size());
+        for (String field : fields) {
+            Set<String> modelLanguages = languages.get(field);
+            if (modelLanguages == null || modelLanguages.contains(language)) {
+                routed.add(field);
             } else {
-                builder.append(token);
+                metrics.model(field).onSkipped();
+            }
+        }
+        return routed;
+    }
+
+    public ExtractedEntities find(String content, String field) {
+        return find(content, Collections.singletonList(field)).get(field);
+    }
+
+    public Map<String, ExtractedEntities> find(String content, Collection<String> fields) {
+        return find(content, fields, AnalysisOptions.DEFAULT);
+    }
+
+    public Map<String, ExtractedEntities> find(String content, Collection<String> fields, AnalysisOptions options) {
+        return find(content, fields, options, UNTRACKED);
+    }
+
+    /**
+     * Finds the entities and records the time spent tokenizing the content in the metrics of the calling processor
+     */
+    Map<String, ExtractedEntities> find(String content, Collection<String> fields, AnalysisOptions options,
+                                        OpenNlpMetrics.ProcessorMetrics processorMetrics) {
+        return find(content, SINGLE_PART, fields, options, processorMetrics);
+    }
+
+    /**
+     * Finds the entities of several texts joined by {@link #joinParts(List, int[])}. All texts are tokenized at once, but every
+     * text is run through the models on its own, so that no entity spans two texts
+     *
+     * @param parts the start offset of each text in the content
+     */
+    Map<String, ExtractedEntities> find(String content, int[] parts, Collection<String> fields, AnalysisOptions options,
+                                        OpenNlpMetrics.ProcessorMetrics processorMetrics) {
+        for (String field : fields) {
+            if (!modelNames.contains(field)) {
+                throw new ElasticsearchException("Could not find field [{}], possible values {}", field, modelNames);
+            }
+        }
+
+        if (resultCache == null) {
+            return extract(content, parts, fields, options, processorMetrics, metrics);
+        }
+
+        ResultCache.ContentKey key = resultCache.key(content, parts);
+        Map<String, ExtractedEntities> entities = new LinkedHashMap<>(fields.size());
+        List<String> missing = new ArrayList<>();
+        for (String field : fields) {
+            ExtractedEntities cached = resultCache.get(field, options, key);
+            if (cached == null) {
+                missing.add(field);
             }
+            // keeps the order of the fields, even if some of them are added later
+            entities.put(field, cached);
+        }
 
-            // only append a whitespace, if the offsets actually differ
-            if (i < tokens.length - 1) {
-                if (spansWithRealOffsets[i].getEnd() != spansWithRealOffsets[i+1].getStart()) {
-                    builder.append(" ");
+        // only tokenize and run the models that were not cached, if any
+        if (missing.isEmpty() == false) {
+            Map<String, ExtractedEntities> extracted = extract(content, parts, missing, options, processorMetrics, metrics);
+            for (Map.Entry<String, ExtractedEntities> entry : extracted.entrySet()) {
+                // entities of a document whose time budget ran out are incomplete, the next time there might be enough time
+                if (entry.getValue().isTruncated() == false) {
+                    resultCache.put(entry.getKey(), options, key, entry.getValue());
                 }
+                entities.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        return entities;
+    }
+
+    /**
+     * Runs all the given models over the content, which is tokenized only once for all of them. If the time budget runs
+     * out, the remaining models and segments are skipped and all entities are marked as truncated
+     *
+     * @param metrics the metrics the models record their documents in, which are not the ones of the node during warm-up
+     */
+    private Map<String, ExtractedEntities> extract(String content, int[] parts, Collection<String> fields, AnalysisOptions options,
+                                                   OpenNlpMetrics.ProcessorMetrics processorMetrics, OpenNlpMetrics metrics) {
+        long start = System.nanoTime();
+        TimeBudget budget = TimeBudget.start(start, options.getTimeBudget());
+        // only the beginning of large documents is analysed, if configured
+        String analysedContent = content.length() > options.getMaxContentLength()
+                ? content.substring(0, options.getMaxContentLength())
+                : content;
+
+        // the offsets are kept for the annotated text, so they do not need to be computed again later
+        int[] tokenOffsets = tokenize(analysedContent, options);
+        // patterns run over the content, only name finders need the strings of the tokens
+        String[] tokens = needsTokens(fields) ? OffsetTokenizer.tokens(analysedContent, tokenOffsets) : null;
+        int[] segments = segment(analysedContent, parts, tokenOffsets, options);
+        // the signals are the same for all models, so they are collected once, and only if any model is filtered at all
+        ModelFilter.Signals signals = filters.isEmpty() ? null : ModelFilter.Signals.of(analysedContent, tokenOffsets);
+        processorMetrics.tokenization().record(System.nanoTime() - start);
+
+        boolean windowed = options.isWindowed();
+        List<Span[]> spans = new ArrayList<>(fields.size());
+        if (parallelPool != null && fields.size() > 1 && analysedContent.length() >= parallelMinContentLength) {
+            // the first model runs on the calling thread, all others are handed over to the pool. Results are collected
+            // in the order of the fields, so the outcome does not depend on which model finishes first
+            Iterator<String> iterator = fields.iterator();
+            String first = iterator.next();
+            List<ForkJoinTask<Span[]>> tasks = new ArrayList<>(fields.size() - 1);
+            while (iterator.hasNext()) {
+                String field = iterator.next();
+                tasks.add(parallelPool.submit(() -> find(field, analysedContent, tokenOffsets, tokens, segments, windowed, signals,
+                        budget, metrics.model(field))));
+            }
+
+            spans.add(find(first, analysedContent, tokenOffsets, tokens, segments, windowed, signals, budget, metrics.model(first)));
+            for (ForkJoinTask<Span[]> task : tasks) {
+                spans.add(task.join());
+            }
+        } else {
+            for (String field : fields) {
+                spans.add(find(field, analysedContent, tokenOffsets, tokens, segments, windowed, signals, budget,
+                        metrics.model(field)));
+            }
+        }
+
+        // only known once all models are done, as every one of them might have been cut off
+        boolean truncated = budget.isTruncated();
+        Map<String, ExtractedEntities> entities = new LinkedHashMap<>(fields.size());
+        Iterator<Span[]> iterator = spans.iterator();
+        for (String field : fields) {
+            // patterns match the text, so their entities are the matched text and not the tokens within it
+            entities.put(field, new ExtractedEntities(analysedContent, tokenOffsets, iterator.next(), truncated,
+                    patterns.containsKey(field)));
+        }
+        return entities;
+    }
+
+    /**
+     * Splits the content into tokens with the tokenizer of the processor, stopping after the maximum number of tokens
+     */
+    private int[] tokenize(String content, AnalysisOptions options) {
+        return switch (options.getTokenizer()) {
+            case OffsetTokenizer.WHITESPACE -> OffsetTokenizer.whitespace(content, options.getMaxTokens());
+            case OffsetTokenizer.MODEL -> OffsetTokenizer.fromSpans(getTokenizer().tokenizePos(content), options.getMaxTokens());
+            default -> OffsetTokenizer.simple(content, options.getMaxTokens());
+        };
+    }
+
+    private TokenizerME getTokenizer() {
+        TokenizerModel model = tokenizerModel;
+        if (model == null) {
+            throw new ElasticsearchException("no tokenizer model configured, set [{}]",
+                    IngestOpenNlpPlugin.TOKENIZER_MODEL_FILE_SETTING.getKey());
+        }
+        Tuple<TokenizerModel, TokenizerME> tokenizer = tokenizers.get();
+        if (tokenizer == null || tokenizer.v1() != model) {
+            tokenizer = Tuple.tuple(model, new TokenizerME(model));
+            tokenizers.set(tokenizer);
+        }
+        return tokenizer.v2();
+    }
+
+    boolean hasTokenizerModel() {
+        return tokenizerModel != null;
+    }
+
+    private boolean needsTokens(Collection<String> fields) {
+        for (String field : fields) {
+            if (patterns.containsKey(field) == false) {
+                return true;
             }
         }
+        return false;
+    }
 
+    /**
+     * Runs a single model over the segments using the name finder of the current thread, or the patterns over the content of
+     * the segments. Documents rejected by the filter of the model, or whose time budget ran out already, skip it and have no
+     * entities
+     */
+    private Span[] find(String field, String content, int[] tokenOffsets, String[] tokens, int[] segments, boolean windowed,
+                        ModelFilter.Signals signals, TimeBudget budget, OpenNlpMetrics.ModelMetrics modelMetrics) {
+        ModelFilter filter = filters.get(field);
+        if (filter != null && filter.accepts(signals) == false) {
+            modelMetrics.onSkipped();
+            return new Span[0];
+        }
+        if (budget.hasTimeLeft() == false) {
+            return new Span[0];
+        }
+
+        long start = System.nanoTime();
+        try {
+            PatternNameFinder patternFinder = patterns.get(field);
+            Span[] spans = patternFinder != null
+                    ? patternFinder.find(content, tokenOffsets, segments, windowed)
+                    : find(field, tokens, segments, windowed, budget);
+            modelMetrics.find().record(System.nanoTime() - start);
+            modelMetrics.onDocument(OffsetTokenizer.count(tokenOffsets), spans.length);
+            return spans;
+        } catch (RuntimeException e) {
+            modelMetrics.onFailure();
+            throw e;
+        }
+    }
+
+    private Span[] find(String field, String[] tokens, int[] segments, boolean windowed, TimeBudget budget) {
+        TokenNameFinder nameFinder = getNameFinder(field);
+        try {
+            return find(nameFinder, tokens, segments, windowed, budget);
+        } finally {
+            // the name finder is reused for the next document, which must not see the adaptive data of this one
+            nameFinder.clearAdaptiveData();
+        }
+    }
+
+    /**
+     * Runs the name finder over each segment of the tokens one after another, the returned spans refer to the whole token array.
+     * Once the time budget ran out, the remaining segments are skipped
+     */
+    private static Span[] find(TokenNameFinder nameFinder, String[] tokens, int[] segments, boolean windowed, TimeBudget budget) {
+        // shortcut if the document is not split up at all
+        if (segments.length == 2 && segments[0] == 0 && segments[1] == tokens.length) {
+            return nameFinder.find(tokens);
+        }
+
+        List<Span> spans = new ArrayList<>();
+        for (int i = 0; i < segments.length; i += 2) {
+            int from = segments[i];
+            int to = segments[i + 1];
+            if (from == to) {
+                continue;
+            }
+            // the first segment has been checked before the model started
+            if (i > 0 && budget.hasTimeLeft() == false) {
+                break;
+            }
+
+            for (Span span : nameFinder.find(Arrays.copyOfRange(tokens, from, to))) {
+                spans.add(new Span(span, from));
+            }
+        }
+
+        Span[] result = spans.toArray(new Span[0]);
+        if (windowed) {
+            // entities within the overlap of two windows are found twice or might be cut off at the end of a window,
+            // sorting keeps the longest span for each start, which is the one not cut off
+            result = NameFinderME.dropOverlappingSpans(result);
+        }
+        return result;
+    }
+
+    /**
+     * Splits the tokens into sentences, if a sentence model is configured, and sentences exceeding the configured window size
+     * into overlapping windows. The returned array contains the start and end token of each segment one after another
+     */
+    private int[] segment(String content, int[] parts, int[] tokenOffsets, AnalysisOptions options) {
+        int[] sentences = splitAtParts(sentences(content, tokenOffsets), parts, tokenOffsets);
+        int windowSize = options.getWindowSize();
+        int step = windowSize - options.getWindowOverlap();
+
+        int count = 0;
+        for (int i = 0; i < sentences.length - 1; i++) {
+            int length = sentences[i + 1] - sentences[i];
+            count += windowSize == 0 || length <= windowSize ? 1 : 1 + (length - windowSize + step - 1) / step;
+        }
+
+        int[] segments = new int[count * 2];
+        int idx = 0;
+        for (int i = 0; i < sentences.length - 1; i++) {
+            int from = sentences[i];
+            int to = sentences[i + 1];
+            if (windowSize == 0 || to - from <= windowSize) {
+                segments[idx++] = from;
+                segments[idx++] = to;
+                continue;
+            }
+
+            for (int start = from; ; start += step) {
+                int end = Math.min(start + windowSize, to);
+                segments[idx++] = start;
+                segments[idx++] = end;
+                if (end == to) {
+                    break;
+                }
+            }
+        }
+
+        return segments;
+    }
+
+    /**
+     * Adds the first token of each part to the sentence boundaries, so that no sentence spans two parts
+     */
+    private static int[] splitAtParts(int[] sentences, int[] parts, int[] tokenOffsets) {
+        if (parts.length < 2) {
+            return sentences;
+        }
+
+        int[] boundaries = new int[sentences.length + parts.length - 1];
+        int count = 0;
+        int sentence = 0;
+        int token = 0;
+        int tokens = OffsetTokenizer.count(tokenOffsets);
+        for (int part = 1; part < parts.length; part++) {
+            while (token < tokens && OffsetTokenizer.start(tokenOffsets, token) < parts[part]) {
+                token++;
+            }
+            while (sentences[sentence] < token) {
+                boundaries[count++] = sentences[sentence++];
+            }
+            // parts without any tokens do not add empty sentences
+            if (sentences[sentence] != token && boundaries[count - 1] != token) {
+                boundaries[count++] = token;
+            }
+        }
+        while (sentence < sentences.length) {
+            boundaries[count++] = sentences[sentence++];
+        }
+
+        return count == boundaries.length ? boundaries : Arrays.copyOf(boundaries, count);
+    }
+
+    /**
+     * Splits the tokens into sentences, if a sentence model is configured. The returned array contains the index of the first
+     * token of each sentence, followed by the number of tokens, so that every token belongs to exactly one sentence
+     */
+    private int[] sentences(String content, int[] tokenOffsets) {
+        int tokens = OffsetTokenizer.count(tokenOffsets);
+        SentenceModel model = sentenceModel;
+        if (model == null) {
+            return new int[] { 0, tokens };
+        }
+
+        Tuple<SentenceModel, SentenceDetectorME> sentenceDetector = sentenceDetectors.get();
+        if (sentenceDetector == null || sentenceDetector.v1() != model) {
+            sentenceDetector = Tuple.tuple(model, new SentenceDetectorME(model));
+            sentenceDetectors.set(sentenceDetector);
+        }
+
+        Span[] sentences = sentenceDetector.v2().sentPosDetect(content);
+        if (sentences.length < 2) {
+            return new int[] { 0, tokens };
+        }
+
+        int[] boundaries = new int[sentences.length + 1];
+        int token = 0;
+        for (int i = 1; i < sentences.length; i++) {
+            // a sentence ends with the first token starting after its end
+            while (token < tokens && OffsetTokenizer.start(tokenOffsets, token) < sentences[i - 1].getEnd()) {
+                token++;
+            }
+            boundaries[i] = token;
+        }
+        boundaries[sentences.length] = tokens;
+
+        return boundaries;
+    }
+
+    /**
+     * Returns the name finder of the current thread for the given model, creating it on first use, or the dictionary
+     */
+    private TokenNameFinder getNameFinder(String field) {
+        // dictionaries do not keep any state, so all threads share them
+        DictionaryNameFinder dictionary = dictionaries.get(field);
+        if (dictionary != null) {
+            return dictionary;
+        }
+
+        TokenNameFinderModel model = getNameFinderModel(field);
+        Tuple<TokenNameFinderModel, NameFinderME> nameFinder = nameFinders.get().get(field);
+        // the model has been reloaded in the meantime
+        if (nameFinder == null || nameFinder.v1() != model) {
+            createdNameFinders.increment();
+            nameFinder = Tuple.tuple(model, new NameFinderME(model));
+            nameFinders.get().put(field, nameFinder);
+        }
+        return nameFinder.v2();
+    }
+
+    /**
+     * The number of name finders created across all threads, as each thread reuses its own ones this is bound by threads * models
+     */
+    long getCreatedNameFinderCount() {
+        return createdNameFinders.sum();
+    }
+
+    /**
+     * Returns the hits, misses and evictions of the result cache or null, if the cache is disabled
+     */
+    Cache.CacheStats getCacheStats() {
+        return resultCache == null ? null : resultCache.stats();
+    }
+
+    /**
+     * Joins several texts, so that their entities can be found with a single call to
+     * {@link #find(String, int[], Collection, AnalysisOptions, OpenNlpMetrics.ProcessorMetrics)}
+     *
+     * @param parts  filled with the start offset of each text in the joined content
+     */
+    static String joinParts(List<String> texts, int[] parts) {
+        if (texts.size() == 1) {
+            return texts.get(0);
+        }
+
+        int length = 0;
+        for (String text : texts) {
+            length += text.length() + PART_SEPARATOR.length();
+        }
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < texts.size(); i++) {
+            if (i > 0) {
+                builder.append(PART_SEPARATOR);
+            }
+            parts[i] = builder.length();
+            builder.append(texts.get(i));
+        }
         return builder.toString();
     }
+
+    /**
+     * Creates the markdown like syntax of the annotated text plugin, i.e. {@code [Munich](Location_Munich)}. This is a single
+     * pass over the sorted spans, copying everything between the entities straight from the content
+     */
+    static String createAnnotatedText(String content, Collection<ExtractedEntities> extractedEntities) {
+        return createAnnotatedText(content, SINGLE_PART, extractedEntities).get(0);
+    }
+
+    /**
+     * Creates the annotated text of each of the texts joined by {@link #joinParts(List, int[])}, in a single pass over the
+     * sorted spans of all of them
+     */
+    static List<String> createAnnotatedText(String content, int[] parts, Collection<ExtractedEntities> extractedEntities) {
+        // all entities were extracted from the same tokens, so the first one is as good as any
+        // these are the real offsets of each token in the content, the entity spans refer to the token indices
+        int[] tokenOffsets = extractedEntities.iterator().next().getTokenOffsets();
+
+        int count = 0;
+        for (ExtractedEntities entities : extractedEntities) {
+            count += entities.getSpans().length;
+        }
+
+        // shortcut if there is no enrichment to be done
+        if (count == 0 && parts.length == 1) {
+            return List.of(content);
+        }
+
+        Span[] allSpans = new Span[count];
+        int idx = 0;
+        for (ExtractedEntities entities : extractedEntities) {
+            Span[] spans = entities.getSpans();
+            System.arraycopy(spans, 0, allSpans, idx, spans.length);
+            idx += spans.length;
+        }
+        // returns the spans sorted by their start
+        Span[] spans = NameFinderME.dropOverlappingSpans(allSpans);
+
+        List<String> annotatedTexts = new ArrayList<>(parts.length);
+        StringBuilder builder = new StringBuilder(content.length() + spans.length * 32);
+        int part = 0;
+        int position = 0;
+        for (Span span : spans) {
+            int start = OffsetTokenizer.start(tokenOffsets, span.getStart());
+            int end = OffsetTokenizer.end(tokenOffsets, span.getEnd() - 1);
+
+            // entities never span two parts, so every part before the entity is complete
+            while (start >= partEnd(content, parts, part)) {
+                builder.append(content, position, partEnd(content, parts, part));
+                annotatedTexts.add(builder.toString());
+                builder.setLength(0);
+                position = parts[++part];
+            }
+
+            builder.append(content, position, start);
+            builder.append('[');
+            builder.append(content, start, end);
+            builder.append("](");
+            builder.append(Strings.capitalize(span.getType()));
+            builder.append('_');
+            builder.append(content, start, end);
+            builder.append(')');
+            position = end;
+        }
+        while (part < parts.length) {
+            builder.append(content, position, partEnd(content, parts, part));
+            annotatedTexts.add(builder.toString());
+            builder.setLength(0);
+            if (++part < parts.length) {
+                position = parts[part];
+            }
+        }
+
+        return annotatedTexts;
+    }
+
+    private static int partEnd(String content, int[] parts, int part) {
+        return part + 1 < parts.length ? parts[part + 1] - PART_SEPARATOR.length() : content.length();
+    }
+
+    /**
+     * Collects the model, start and end offset and optionally the probability of every entity in parallel lists, sorted by
+     * the start of the entities, i.e. {@code {"type": ["locations"], "start": [0], "end": [6]}}. Entities of different models
+     * may overlap. If several texts were joined by {@link #joinParts(List, int[])}, the offsets refer to the text the entity
+     * was found in, and the index of that text is added as well
+     */
+    static Map<String, List<?>> createEntityOffsets(int[] parts, Map<String, ExtractedEntities> extractedEntities,
+                                                    boolean includeProbability) {
+        int count = 0;
+        for (ExtractedEntities entities : extractedEntities.values()) {
+            count += entities.getSpans().length;
+        }
+
+        // one slot per entity in each array, sorted together instead of creating an object per entity
+        String[] types = new String[count];
+        int[] starts = new int[count];
+        int[] ends = new int[count];
+        double[] probabilities = new double[count];
+        int idx = 0;
+        for (Map.Entry<String, ExtractedEntities> entry : extractedEntities.entrySet()) {
+            int[] tokenOffsets = entry.getValue().getTokenOffsets();
+            for (Span span : entry.getValue().getSpans()) {
+                types[idx] = entry.getKey();
+                starts[idx] = OffsetTokenizer.start(tokenOffsets, span.getStart());
+                ends[idx] = OffsetTokenizer.end(tokenOffsets, span.getEnd() - 1);
+                probabilities[idx] = span.getProb();
+                idx++;
+            }
+        }
+        // stable, so that entities with the same offsets keep the order of the models
+        new InPlaceMergeSorter() {
+            @Override
+            protected int compare(int i, int j) {
+                int compare = Integer.compare(starts[i], starts[j]);
+                return compare != 0 ? compare : Integer.compare(ends[i], ends[j]);
+            }
+
+            @Override
+            protected void swap(int i, int j) {
+                String type = types[i];
+                types[i] = types[j];
+                types[j] = type;
+                int start = starts[i];
+                starts[i] = starts[j];
+                starts[j] = start;
+                int end = ends[i];
+                ends[i] = ends[j];
+                ends[j] = end;
+                double probability = probabilities[i];
+                probabilities[i] = probabilities[j];
+                probabilities[j] = probability;
+            }
+        }.sort(0, count);
+
+        List<String> typeList = new ArrayList<>(count);
+        List<Integer> startList = new ArrayList<>(count);
+        List<Integer> endList = new ArrayList<>(count);
+        List<Integer> textList = parts.length > 1 ? new ArrayList<>(count) : null;
+        List<Double> probabilityList = includeProbability ? new ArrayList<>(count) : null;
+        int part = 0;
+        for (int i = 0; i < count; i++) {
+            // entities never span two parts
+            while (part + 1 < parts.length && starts[i] >= parts[part + 1]) {
+                part++;
+            }
+            typeList.add(types[i]);
+            startList.add(starts[i] - parts[part]);
+            endList.add(ends[i] - parts[part]);
+            if (textList != null) {
+                textList.add(part);
+            }
+            if (probabilityList != null) {
+                probabilityList.add(probabilities[i]);
+            }
+        }
+
+        Map<String, List<?>> offsets = new LinkedHashMap<>();
+        offsets.put("type", typeList);
+        offsets.put("start", startList);
+        offsets.put("end", endList);
+        if (textList != null) {
+            offsets.put("text", textList);
+        }
+        if (probabilityList != null) {
+            offsets.put("probability", probabilityList);
+        }
+        return offsets;
+    }
+
+    /**
+     * The time budget of a single document, shared by all models running for it, possibly on several threads. Checking it
+     * marks the document as truncated, if the budget ran out, as the caller skips the remaining work then
+     */
+    static final class TimeBudget {
+
+        private static final TimeBudget UNLIMITED = new TimeBudget(false, 0);
+
+        private final boolean limited;
+        private final long deadline;
+        private volatile boolean truncated;
+
+        private TimeBudget(boolean limited, long deadline) {
+            this.limited = limited;
+            this.deadline = deadline;
+        }
+
+        static TimeBudget start(long startNanos, TimeValue budget) {
+            return budget.nanos() > 0 ? new TimeBudget(true, startNanos + budget.nanos()) : UNLIMITED;
+        }
+
+        boolean hasTimeLeft() {
+            if (limited == false) {
+                return true;
+            }
+            if (truncated == false && System.nanoTime() - deadline >= 0) {
+                truncated = true;
+            }
+            return truncated == false;
+        }
+
+        boolean isTruncated() {
+            return truncated;
+        }
+    }
 }
@@ -0,0 +1,210 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import opennlp.tools.namefind.NameFinderME;
+import opennlp.tools.util.Span;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Finds entities with a fixed structure, like dates, amounts or identifiers, using regular expressions instead of a model.
+ * All expressions are combined into a single alternation, that is compiled once and run over the content of each segment,
+ * so the cost does not grow with the number of expressions as much as running each of them on its own would. As the groups
+ * of all expressions are numbered together then, expressions must not contain back references. Only
+ * matches starting at the start of a token and ending at the end of a token are returned, so the spans refer to the same
+ * tokens as the ones of the models.
+ *
+ * Unlike the other finders this one needs the content and the token offsets, not only the tokens, so that the expressions
+ * see the original text including its whitespace. It does not keep any state between calls and can be shared between
+ * threads.
+ */
+class PatternNameFinder {
+
+    private final String type;
+    private final Pattern pattern;
+    private final int patterns;
+
+    PatternNameFinder(List<String> patterns, String type) {
+        if (patterns.isEmpty()) {
+            throw new IllegalArgumentException("no patterns configured for [" + type + "]");
+        }
+        StringBuilder combined = new StringBuilder();
+        for (String pattern : patterns) {
+            if (combined.length() > 0) {
+                combined.append('|');
+            }
+            combined.append("(?:").append(pattern).append(')');
+        }
+        this.type = type;
+        this.pattern = Pattern.compile(combined.toString());
+        this.patterns = patterns.size();
+    }
+
+    /**
+     * Reads the expressions of a UTF-8 text file, one per line. Empty lines and lines starting with {@code #} are skipped
+     */
+    static PatternNameFinder load(Path path, String type) throws IOException {
+        List<String> patterns = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                // compiling each expression on its own points to the broken line, the combined one would not
+                try {
+                    Pattern.compile(line);
+                } catch (PatternSyntaxException e) {
+                    throw new IOException("invalid pattern in line [" + lineNumber + "] of [" + path + "]", e);
+                }
+                // the groups are numbered across all expressions once they are combined, so \1 would refer to another one
+                if (hasBackReference(line)) {
+                    throw new IOException("pattern in line [" + lineNumber + "] of [" + path + "] contains a back reference, "
+                            + "which is not supported");
+                }
+                patterns.add(line);
+            }
+        }
+        if (patterns.isEmpty()) {
+            throw new IOException("file [" + path + "] does not contain any patterns");
+        }
+        try {
+            return new PatternNameFinder(patterns, type);
+        } catch (PatternSyntaxException e) {
+            // i.e. two expressions defining a named group with the same name
+            throw new IOException("patterns of [" + path + "] cannot be combined, named groups must have different names", e);
+        }
+    }
+
+    /**
+     * Returns true if the expression refers to a group by number, like {@code \1}, or by name, like {@code \k<name>}.
+     * Escaped backslashes and quoted sections are skipped
+     */
+    static boolean hasBackReference(String pattern) {
+        for (int i = 0; i < pattern.length() - 1; i++) {
+            if (pattern.charAt(i) != '\\') {
+                continue;
+            }
+            char next = pattern.charAt(++i);
+            if ((next >= '1' && next <= '9') || next == 'k') {
+                return true;
+            }
+            if (next == 'Q') {
+                int end = pattern.indexOf("\\E", i);
+                if (end < 0) {
+                    return false;
+                }
+                i = end + 1;
+            }
+        }
+        return false;
+    }
+
+    int getPatternCount() {
+        return patterns;
+    }
+
+    /**
+     * Runs the expressions over the content of each segment, the returned spans refer to the whole token array
+     *
+     * @param content       the content the tokens were created from
+     * @param tokenOffsets  the start and end offset of each token in the content, see {@link OffsetTokenizer}
+     * @param segments      the start and end token of each segment one after another
+     * @param windowed      whether the segments overlap, so that an entity might be found more than once
+     */
+    Span[] find(String content, int[] tokenOffsets, int[] segments, boolean windowed) {
+        Matcher matcher = pattern.matcher(content);
+        List<Span> spans = new ArrayList<>();
+        for (int i = 0; i < segments.length; i += 2) {
+            int from = segments[i];
+            int to = segments[i + 1];
+            if (from == to) {
+                continue;
+            }
+
+            matcher.region(OffsetTokenizer.start(tokenOffsets, from), OffsetTokenizer.end(tokenOffsets, to - 1));
+            while (matcher.find()) {
+                if (matcher.start() == matcher.end()) {
+                    continue;
+                }
+                int start = tokenStartingAt(tokenOffsets, from, to, matcher.start());
+                int end = tokenEndingAt(tokenOffsets, from, to, matcher.end());
+                // matches within a token, or cutting one into two, do not refer to whole tokens and are dropped
+                if (start >= 0 && end >= start) {
+                    spans.add(new Span(start, end + 1, type, 1.0));
+                }
+            }
+        }
+
+        Span[] result = spans.toArray(new Span[0]);
+        if (windowed) {
+            // same as for the models, matches within the overlap of two windows are found twice
+            result = NameFinderME.dropOverlappingSpans(result);
+        }
+        return result;
+    }
+
+    // binary search for the token starting at the offset, the tokens are sorted and do not overlap
+    private static int tokenStartingAt(int[] tokenOffsets, int from, int to, int offset) {
+        int low = from;
+        int high = to - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int start = OffsetTokenizer.start(tokenOffsets, mid);
+            if (start < offset) {
+                low = mid + 1;
+            } else if (start > offset) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private static int tokenEndingAt(int[] tokenOffsets, int from, int to, int offset) {
+        int low = from;
+        int high = to - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int end = OffsetTokenizer.end(tokenOffsets, mid);
+            if (end < offset) {
+                low = mid + 1;
+            } else if (end > offset) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+}
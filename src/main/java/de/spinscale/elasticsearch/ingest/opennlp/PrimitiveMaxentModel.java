@@ -0,0 +1,191 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import opennlp.tools.ml.maxent.GISModel;
+import opennlp.tools.ml.model.Context;
+import opennlp.tools.ml.model.MaxentModel;
+
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The part of a maxent model shared by the {@link CompiledMaxentModel} and the {@link MappedMaxentModel}, which only differ
+ * in where they keep the predicates and their parameters. Every predicate has an int id, which is looked up in an open
+ * addressing table comparing the string hash first.
+ *
+ * The evaluation is the same as the one of {@link GISModel}, including the order of the floating point operations, so
+ * that the probabilities are exactly the same as the ones of the original model
+ */
+abstract class PrimitiveMaxentModel implements MaxentModel {
+
+    private final String[] outcomes;
+    private final double uniformPrior;
+
+    PrimitiveMaxentModel(String[] outcomes) {
+        this.outcomes = outcomes;
+        // the same prior the UniformPrior of a GISModel adds to every outcome, computed the same way
+        this.uniformPrior = StrictMath.log(1.0 / outcomes.length);
+    }
+
+    /**
+     * Returns the id of the predicate or -1 if the model does not know it
+     */
+    abstract int predicate(String name);
+
+    /**
+     * Adds the parameters of the predicate multiplied by the value to the probabilities of their outcomes
+     */
+    abstract void addParameters(int predicate, double value, double[] probs);
+
+    @Override
+    public double[] eval(String[] context) {
+        return eval(context, null, new double[outcomes.length]);
+    }
+
+    @Override
+    public double[] eval(String[] context, double[] probs) {
+        return eval(context, null, probs);
+    }
+
+    @Override
+    public double[] eval(String[] context, float[] values) {
+        return eval(context, values, new double[outcomes.length]);
+    }
+
+    private double[] eval(String[] context, float[] values, double[] probs) {
+        Arrays.fill(probs, uniformPrior);
+        for (int ci = 0; ci < context.length; ci++) {
+            int predicate = predicate(context[ci]);
+            if (predicate >= 0) {
+                addParameters(predicate, values == null ? 1 : values[ci], probs);
+            }
+        }
+        normalize(probs);
+        return probs;
+    }
+
+    /**
+     * Turns the summed up parameters into probabilities, the same way {@link GISModel} does
+     */
+    static void normalize(double[] probs) {
+        double normal = 0.0;
+        for (int oi = 0; oi < probs.length; oi++) {
+            // StrictMath like GISModel, Math may differ in the last bit depending on the platform
+            probs[oi] = StrictMath.exp(probs[oi]);
+            normal += probs[oi];
+        }
+        for (int oi = 0; oi < probs.length; oi++) {
+            probs[oi] /= normal;
+        }
+    }
+
+    @Override
+    public String getBestOutcome(double[] ocs) {
+        int best = 0;
+        for (int i = 1; i < ocs.length; i++) {
+            if (ocs[i] > ocs[best]) {
+                best = i;
+            }
+        }
+        return outcomes[best];
+    }
+
+    @Override
+    public String getAllOutcomes(double[] ocs) {
+        DecimalFormat df = new DecimalFormat("0.0000");
+        StringBuilder sb = new StringBuilder(ocs.length * 2);
+        for (int i = 0; i < ocs.length; i++) {
+            if (i > 0) {
+                sb.append("  ");
+            }
+            sb.append(outcomes[i]).append("[").append(df.format(ocs[i])).append("]");
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String getOutcome(int i) {
+        return outcomes[i];
+    }
+
+    @Override
+    public int getIndex(String outcome) {
+        for (int i = 0; i < outcomes.length; i++) {
+            if (outcomes[i].equals(outcome)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int getNumOutcomes() {
+        return outcomes.length;
+    }
+
+    String[] outcomes() {
+        return outcomes;
+    }
+
+    /**
+     * The predicates of a maxent model in the order of their ids, together with their parameters
+     */
+    record PredicateContexts(String[] outcomes, String[] predicates, Context[] contexts, int numParameters) {}
+
+    /**
+     * Reads the outcomes, predicates and parameters out of a maxent model
+     */
+    static PredicateContexts predicateContexts(GISModel model) {
+        Object[] data = model.getDataStructures();
+        Context[] params = (Context[]) data[0];
+        Map<?, ?> predicateMap = (Map<?, ?>) data[1];
+        String[] outcomes = (String[]) data[2];
+
+        String[] predicates = new String[predicateMap.size()];
+        Context[] contexts = new Context[predicateMap.size()];
+        int numParameters = 0;
+        int id = 0;
+        for (Map.Entry<?, ?> entry : predicateMap.entrySet()) {
+            // older versions of OpenNLP map the predicates to an index into the parameters instead of the parameters
+            Context context = entry.getValue() instanceof Context c ? c : params[(Integer) entry.getValue()];
+            predicates[id] = (String) entry.getKey();
+            contexts[id] = context;
+            numParameters += context.getOutcomes().length;
+            id++;
+        }
+        return new PredicateContexts(outcomes, predicates, contexts, numParameters);
+    }
+
+    /**
+     * Returns the number of slots of the predicate table, a power of two
+     */
+    static int tableSize(int numPredicates) {
+        // keep the table at most half full, so that lookups of unknown predicates stop early
+        return Integer.highestOneBit(Math.max(1, numPredicates) * 2) << 1;
+    }
+
+    /**
+     * Returns the slot a predicate hash starts probing at
+     */
+    static int slot(int hash, int tableMask) {
+        // spreads the bits of the string hash, as the table uses the lowest bits only
+        return (hash ^ (hash >>> 16)) & tableMask;
+    }
+}
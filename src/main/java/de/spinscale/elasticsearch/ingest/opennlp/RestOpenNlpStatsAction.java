@@ -0,0 +1,84 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import org.elasticsearch.client.internal.node.NodeClient;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.xcontent.ToXContent;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/**
+ * Returns the metrics of the node receiving the request, so every node has to be scraped on its own
+ */
+public class RestOpenNlpStatsAction extends BaseRestHandler {
+
+    private final String nodeName;
+    private final Supplier<OpenNlpService> service;
+
+    RestOpenNlpStatsAction(String nodeName, Supplier<OpenNlpService> service) {
+        this.nodeName = nodeName;
+        this.service = service;
+    }
+
+    @Override
+    public String getName() {
+        return "ingest_opennlp_stats_action";
+    }
+
+    @Override
+    public List<Route> routes() {
+        return List.of(new Route(GET, "/_opennlp/stats"));
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) {
+        return channel -> {
+            XContentBuilder builder = channel.newBuilder();
+            toXContent(builder, nodeName, service.get());
+            channel.sendResponse(new RestResponse(RestStatus.OK, builder));
+        };
+    }
+
+    /**
+     * Writes the metrics of the models and processors, and the counters of the result cache, if it is enabled
+     */
+    static void toXContent(XContentBuilder builder, String nodeName, OpenNlpService service) throws IOException {
+        builder.startObject();
+        builder.field("node", nodeName);
+        service.getMetrics().toXContent(builder, ToXContent.EMPTY_PARAMS);
+        Cache.CacheStats cacheStats = service.getCacheStats();
+        if (cacheStats != null) {
+            builder.startObject("cache");
+            builder.field("hits", cacheStats.getHits());
+            builder.field("misses", cacheStats.getMisses());
+            builder.field("evictions", cacheStats.getEvictions());
+            builder.endObject();
+        }
+        builder.endObject();
+    }
+}
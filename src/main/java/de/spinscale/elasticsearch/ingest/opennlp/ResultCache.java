@@ -0,0 +1,152 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.core.TimeValue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node level cache of extracted entities, so that documents with the same content do not need to be tokenized and
+ * run through the models again. The content is not part of the key, only a 128 bit hash of it
+ */
+class ResultCache {
+
+    private final Cache<Key, ExtractedEntities> cache;
+    // increased whenever models are reloaded, so that entities extracted with a previous model are never returned
+    private final AtomicLong generation = new AtomicLong();
+
+    ResultCache(ByteSizeValue size, TimeValue expireAfterAccess) {
+        CacheBuilder<Key, ExtractedEntities> builder = CacheBuilder.<Key, ExtractedEntities>builder()
+                .setMaximumWeight(size.getBytes())
+                .weigher((key, entities) -> entities.ramBytesUsed());
+        if (expireAfterAccess.nanos() > 0) {
+            builder.setExpireAfterAccess(expireAfterAccess);
+        }
+        this.cache = builder.build();
+    }
+
+    /**
+     * Creates the key of the content for the current generation of models, the same key has to be used to look up and to
+     * store the entities of a document
+     */
+    ContentKey key(String content) {
+        return key(content, new int[] { 0 });
+    }
+
+    /**
+     * Creates the key of content joined from several parts, the same content split differently has a different key
+     */
+    ContentKey key(String content, int[] parts) {
+        // MurmurHash3 x64 128 over the UTF-16 code units, read directly from the string instead of copying it into bytes
+        long h1 = parts.length;
+        long h2 = parts.length;
+        int length = content.length();
+        int blocks = length & ~7;
+        for (int i = 0; i < blocks; i += 8) {
+            h1 ^= mixK1(chars(content, i, i + 4));
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(chars(content, i + 4, i + 8));
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        if (blocks + 4 < length) {
+            h2 ^= mixK2(chars(content, blocks + 4, length));
+        }
+        if (blocks < length) {
+            h1 ^= mixK1(chars(content, blocks, Math.min(blocks + 4, length)));
+        }
+
+        h1 ^= length * 2L;
+        h2 ^= length * 2L;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        for (int part : parts) {
+            h1 = 31 * h1 + part;
+        }
+        return new ContentKey(generation.get(), h1, h2);
+    }
+
+    // up to four chars as one little endian long
+    private static long chars(String content, int from, int to) {
+        long k = 0;
+        for (int i = from; i < to; i++) {
+            k |= (long) content.charAt(i) << ((i - from) * 16);
+        }
+        return k;
+    }
+
+    private static long mixK1(long k1) {
+        return Long.rotateLeft(k1 * 0x87c37b91114253d5L, 31) * 0x4cf5ad432745937fL;
+    }
+
+    private static long mixK2(long k2) {
+        return Long.rotateLeft(k2 * 0x4cf5ad432745937fL, 33) * 0x87c37b91114253d5L;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    ExtractedEntities get(String model, AnalysisOptions options, ContentKey key) {
+        return cache.get(new Key(model, options, key));
+    }
+
+    void put(String model, AnalysisOptions options, ContentKey key, ExtractedEntities entities) {
+        cache.put(new Key(model, options, key), entities);
+    }
+
+    void invalidateAll() {
+        generation.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    Cache.CacheStats stats() {
+        return cache.stats();
+    }
+
+    int count() {
+        return cache.count();
+    }
+
+    long weight() {
+        return cache.weight();
+    }
+
+    record ContentKey(long generation, long h1, long h2) {}
+
+    // the options are part of the key, as they change the tokens the models are run on
+    private record Key(String model, AnalysisOptions options, ContentKey content) {}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The documents run through the models on startup. Unless a corpus file is configured, documents are generated from
+ * sentence templates, so that the name finders see varying tokens, entities and document lengths like they do later on
+ */
+final class WarmUpCorpus {
+
+    private static final int SYNTHETIC_DOCUMENTS = 256;
+
+    private static final String[] PERSONS = { "Kobe Bryant", "Angela Merkel", "Marie Curie", "John Smith", "Serena Williams",
+            "Albert Einstein", "Barack Obama", "Ada Lovelace", "Pablo Picasso", "Greta Thunberg", "Linus Torvalds" };
+    private static final String[] LOCATIONS = { "Munich", "New York", "Stockholm", "San Francisco", "Madrid", "Cologne",
+            "London", "Amsterdam", "Paris", "Tokyo", "Los Angeles", "Berlin", "Sydney" };
+    private static final String[] DATES = { "yesterday", "last Monday", "January 5, 2019", "in 1998", "next week",
+            "on Friday", "March 2021", "two years ago", "this morning" };
+    private static final String[] TEMPLATES = {
+            "{person} was one of the best basketball players of all time.",
+            "{location} is really an awesome city, but {location} is as well.",
+            "{date} has been the hottest day of the year in {location}.",
+            "{person} moved from {location} to {location} {date} and started working for a small company there.",
+            "According to {person}, the conference in {location} will take place {date}, tickets are available online.",
+            "The weather in {location} was terrible {date}, so {person} stayed at home and read a book.",
+            "Did {person} really say that? I met her in {location} {date} and she did not mention it at all!",
+            "Prices rose by 3.5% in {location} {date}, the highest increase since 2008 (see the report for details).",
+            "{person} and {person} signed the agreement in {location} {date}. The negotiations took more than 40 hours.",
+            "no entities in this sentence, it is all lower case and talks about nothing in particular."
+    };
+
+    private WarmUpCorpus() {}
+
+    /**
+     * Reads the documents from a file, one document per line, empty lines are skipped
+     */
+    static List<String> read(Path file) throws IOException {
+        List<String> documents = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (line.isBlank() == false) {
+                documents.add(line);
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * Generates documents of one to four sentences, filling the templates with different entities each time
+     */
+    static List<String> synthetic() {
+        List<String> documents = new ArrayList<>(SYNTHETIC_DOCUMENTS);
+        int fill = 0;
+        for (int i = 0; i < SYNTHETIC_DOCUMENTS; i++) {
+            StringBuilder document = new StringBuilder();
+            int sentences = 1 + i % 4;
+            for (int j = 0; j < sentences; j++) {
+                String template = TEMPLATES[(i * 7 + j * 3) % TEMPLATES.length];
+                if (j > 0) {
+                    document.append(' ');
+                }
+                int start = 0;
+                for (int open = template.indexOf('{'); open >= 0; open = template.indexOf('{', start)) {
+                    int close = template.indexOf('}', open);
+                    document.append(template, start, open);
+                    fill++;
+                    document.append(switch (template.substring(open + 1, close)) {
+                        case "person" -> PERSONS[fill % PERSONS.length];
+                        case "location" -> LOCATIONS[fill % LOCATIONS.length];
+                        default -> DATES[fill % DATES.length];
+                    });
+                    start = close + 1;
+                }
+                document.append(template, start, template.length());
+            }
+            documents.add(capitalize(document));
+        }
+        return documents;
+    }
+
+    // templates starting with a date start with a lower case letter
+    private static String capitalize(StringBuilder document) {
+        document.setCharAt(0, Character.toUpperCase(document.charAt(0)));
+        return document.toString();
+    }
+}
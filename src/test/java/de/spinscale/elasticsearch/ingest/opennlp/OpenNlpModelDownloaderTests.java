@@ -0,0 +1,123 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.elasticsearch.ingest.opennlp;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class OpenNlpModelDownloaderTests {
+
+    private static final Path MODELS = Paths.get("src/test/resources/models/");
+
+    @Test
+    public void testThatModelsAreDownloadedFromAManifest(@TempDir Path tempDir) throws Exception {
+        // a local directory stands in for a mirror, the manifest refers to the models relative to itself
+        Path mirror = Files.createDirectory(tempDir.resolve("mirror"));
+        Path config = Files.createDirectory(tempDir.resolve("config"));
+        for (String model : List.of("en-ner-persons", "en-ner-locations", "en-ner-dates")) {
+            Files.copy(MODELS.resolve(model + ".bin"), mirror.resolve(model + ".bin"));
+        }
+        Path persons = mirror.resolve("en-ner-persons.bin");
+        Files.write(mirror.resolve("models.txt"), List.of(
+                "# name file size sha256 source",
+                "persons  persons.bin  " + Files.size(persons) + "  " + OpenNlpModelDownloader.sha256(persons) + "  en-ner-persons.bin",
+                "",
+                "locations  locations.bin  -  -  " + mirror.resolve("en-ner-locations.bin").toUri(),
+                "dates  dates.bin  -  -  en-ner-dates.bin"));
+
+        List<ModelManifest.Entry> entries = OpenNlpModelDownloader.readManifest("mirror/models.txt", tempDir);
+        assertThat(entries).extracting(ModelManifest.Entry::name).containsExactly("persons", "locations", "dates");
+
+        List<OpenNlpModelDownloader.Result> results = OpenNlpModelDownloader.download(entries, config, 2, 0);
+        assertThat(results).extracting(OpenNlpModelDownloader.Result::failure).containsOnlyNulls();
+        assertThat(results).extracting(OpenNlpModelDownloader.Result::downloaded).containsOnly(true);
+        assertThat(Files.mismatch(persons, config.resolve("persons.bin"))).isEqualTo(-1L);
+        assertThat(Files.mismatch(mirror.resolve("en-ner-dates.bin"), config.resolve("dates.bin"))).isEqualTo(-1L);
+        assertThat(results.get(1).sha256()).isEqualTo(OpenNlpModelDownloader.sha256(mirror.resolve("en-ner-locations.bin")));
+        try (var files = Files.list(config)) {
+            assertThat(files.map(file -> file.getFileName().toString())).containsExactlyInAnyOrder("persons.bin", "locations.bin",
+                    "dates.bin");
+        }
+
+        // models that exist already are not downloaded again
+        results = OpenNlpModelDownloader.download(entries, config, 2, 0);
+        assertThat(results).extracting(OpenNlpModelDownloader.Result::downloaded).containsOnly(false);
+    }
+
+    @Test
+    public void testThatPartialDownloadsAreResumed(@TempDir Path tempDir) throws Exception {
+        Path source = MODELS.resolve("en-ner-locations.bin");
+        byte[] bytes = Files.readAllBytes(source);
+        Files.write(tempDir.resolve("locations.bin.part"), Arrays.copyOf(bytes, bytes.length / 3));
+
+        ModelManifest.Entry entry = new ModelManifest.Entry("locations", "locations.bin", bytes.length,
+                OpenNlpModelDownloader.sha256(source), source.toUri());
+        OpenNlpModelDownloader.Result result = OpenNlpModelDownloader.download(entry, tempDir, 0);
+
+        assertThat(result.downloaded()).isTrue();
+        assertThat(Files.readAllBytes(tempDir.resolve("locations.bin"))).isEqualTo(bytes);
+        assertThat(tempDir.resolve("locations.bin.part")).doesNotExist();
+    }
+
+    @Test
+    public void testThatChecksumMismatchesFail(@TempDir Path tempDir) throws Exception {
+        Path source = MODELS.resolve("en-ner-dates.bin");
+        ModelManifest.Entry entry = new ModelManifest.Entry("dates", "dates.bin", -1, "0".repeat(64), source.toUri());
+
+        assertThatThrownBy(() -> OpenNlpModelDownloader.download(entry, tempDir, 0))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("Checksum mismatch for [dates.bin]");
+        assertThat(tempDir.resolve("dates.bin")).doesNotExist();
+        assertThat(tempDir.resolve("dates.bin.part")).doesNotExist();
+
+        List<OpenNlpModelDownloader.Result> results = OpenNlpModelDownloader.download(List.of(entry), tempDir, 1, 0);
+        assertThat(results.get(0).failure()).hasMessageContaining("Checksum mismatch");
+    }
+
+    @Test
+    public void testThatInvalidManifestsAreRejected() {
+        URI location = URI.create("https://example.org/models/manifest.txt");
+        List<ModelManifest.Entry> entries = ModelManifest.parse(List.of("persons persons.bin 10 - en-ner-person.bin"), location);
+        assertThat(entries.get(0).source()).isEqualTo(URI.create("https://example.org/models/en-ner-person.bin"));
+        assertThat(entries.get(0).sha256()).isNull();
+
+        assertThatThrownBy(() -> ModelManifest.parse(List.of("# models", "persons persons.bin ten - a.bin"), location))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("line [2]")
+                .hasMessageContaining("size [ten] is not a number");
+        assertThatThrownBy(() -> ModelManifest.parse(List.of("persons persons.bin - abc a.bin"), location))
+                .hasMessageContaining("sha256 [abc] must be 64 hex characters");
+        assertThatThrownBy(() -> ModelManifest.parse(List.of("persons ../persons.bin - - a.bin"), location))
+                .hasMessageContaining("must be a file name without a directory");
+        assertThatThrownBy(() -> ModelManifest.parse(List.of("persons a.bin - - a.bin", "persons b.bin - - b.bin"), location))
+                .hasMessageContaining("model [persons] is listed twice");
+        assertThatThrownBy(() -> ModelManifest.parse(List.of("persons a.bin - a.bin"), location))
+                .hasMessageContaining("expected name, file, size, sha256 and source");
+    }
+}
@@ -18,10 +18,12 @@
 package de.spinscale.elasticsearch.ingest.opennlp;
 
 import org.elasticsearch.action.ingest.SimulateProcessorResult;
+import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.core.PathUtils;
 import org.elasticsearch.core.Tuple;
 import org.elasticsearch.index.VersionType;
+import org.elasticsearch.ingest.CompoundProcessor;
 import org.elasticsearch.ingest.IngestDocument;
 import org.elasticsearch.ingest.Processor;
 import org.elasticsearch.xcontent.ToXContent;
@@ -29,14 +31,32 @@ import org.elasticsearch.xcontent.XContentBuilder;
 import org.elasticsearch.xcontent.XContentFactory;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 public class OpenNlpProcessorTests {
 
+    // a document whose entities come from the cache only needs the hash of its content and a few small collections,
+    // the budget leaves plenty of headroom for differences between JVMs and garbage collectors
+    private static final long ALLOCATED_BYTES_PER_CACHED_DOCUMENT = 16 * 1024;
+
     private static OpenNlpService service;
 
     @BeforeAll
@@ -53,8 +73,9 @@ public class OpenNlpProcessorTests {
 
     @Test
     public void testThatExtractionsWork() throws Exception {
-        OpenNlpProcessor processor = new OpenNlpProcessor(service, null, "source_field", "target_field",
-                null, new HashSet<>(Arrays.asList("names", "dates", "locations")), "description");
+        OpenNlpProcessor processor = new OpenNlpProcessor(service, null, List.of("source_field"), "target_field",
+                null, null, false, null, new HashSet<>(Arrays.asList("names", "dates", "locations")), AnalysisOptions.DEFAULT, null,
+                "description");
 
         Map<String, Object> entityData = getIngestDocumentData(processor);
 
@@ -65,8 +86,8 @@ public class OpenNlpProcessorTests {
 
     @Test
     public void testThatFieldsCanBeExcluded() throws Exception {
-        OpenNlpProcessor processor = new OpenNlpProcessor(service, null, "source_field", "target_field",
-                null, new HashSet<>(Arrays.asList("dates")), "description");
+        OpenNlpProcessor processor = new OpenNlpProcessor(service, null, List.of("source_field"), "target_field",
+                null, null, false, null, new HashSet<>(Arrays.asList("dates")), AnalysisOptions.DEFAULT, null, "description");
 
         Map<String, Object> entityData = getIngestDocumentData(processor);
 
@@ -77,8 +98,9 @@ public class OpenNlpProcessorTests {
 
     @Test
     public void testThatExistingValuesAreMergedWithoutDuplicates() throws Exception {
-        OpenNlpProcessor processor = new OpenNlpProcessor(service, null, "source_field", "target_field",
-                null, new HashSet<>(Arrays.asList("names", "dates", "locations")), "description");
+        OpenNlpProcessor processor = new OpenNlpProcessor(service, null, List.of("source_field"), "target_field",
+                null, null, false, null, new HashSet<>(Arrays.asList("names", "dates", "locations")), AnalysisOptions.DEFAULT, null,
+                "description");
 
         IngestDocument ingestDocument = getIngestDocument();
 
@@ -117,8 +139,9 @@ public class OpenNlpProcessorTests {
 
     @Test
     public void testToXContent() throws Exception {
-        OpenNlpProcessor processor = new OpenNlpProcessor(service, null, "source_field", "target_field",
-                null, new HashSet<>(Arrays.asList("names", "dates", "locations")), "description");
+        OpenNlpProcessor processor = new OpenNlpProcessor(service, null, List.of("source_field"), "target_field",
+                null, null, false, null, new HashSet<>(Arrays.asList("names", "dates", "locations")), AnalysisOptions.DEFAULT, null,
+                "description");
 
         IngestDocument ingestDocument = getIngestDocument();
         processor.execute(ingestDocument);
@@ -149,6 +172,381 @@ public class OpenNlpProcessorTests {
                 " day of the year.");
     }
 
+    @Test
+    public void testThatSeveralFieldsAndArraysAreAnalysed() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", Arrays.asList("subject", "body", "comments"));
+        config.put("annotated_text_field", "annotated_text");
+        OpenNlpProcessor processor = new OpenNlpProcessor.Factory(service).create(Collections.emptyMap(), null, "description", config);
+
+        Map<String, Object> document = new HashMap<>();
+        document.put("subject", "Kobe Bryant was one of the best basketball players of all time.");
+        document.put("body", "");
+        document.put("comments", Arrays.asList("Munich is really an awesome city, but New York is as well.",
+                "Yesterday has been the hottest day of the year."));
+        IngestDocument ingestDocument = processor.execute(new IngestDocument("my-index", "my-id", 1L, null, VersionType.INTERNAL,
+                document));
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> entityData = (Map<String, Object>) ingestDocument.getSourceAndMetadata().get("entities");
+        assertThatHasElements(entityData, "names", "Kobe Bryant");
+        assertThatHasElements(entityData, "locations", "Munich", "New York");
+        assertThatHasElements(entityData, "dates", "Yesterday");
+
+        // one annotated text per non empty text
+        @SuppressWarnings("unchecked")
+        List<String> annotatedTexts = ingestDocument.getFieldValue("annotated_text", List.class);
+        assertThat(annotatedTexts).containsExactly(
+                "[Kobe Bryant](Person_Kobe Bryant) was one of the best basketball players of all time.",
+                "[Munich](Location_Munich) is really an awesome city, but [New York](Location_New York) is as well.",
+                "[Yesterday](Date_Yesterday) has been the hottest day of the year.");
+    }
+
+    @Test
+    public void testThatEntityOffsetsAreStored() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", Arrays.asList("subject", "comments"));
+        config.put("offsets_field", "entity_offsets");
+        config.put("include_probability", true);
+        OpenNlpProcessor processor = new OpenNlpProcessor.Factory(service).create(Collections.emptyMap(), null, "description", config);
+
+        Map<String, Object> document = new HashMap<>();
+        document.put("subject", "Kobe Bryant was one of the best basketball players of all time.");
+        document.put("comments", Arrays.asList("Munich is really an awesome city, but New York is as well.",
+                "Yesterday has been the hottest day of the year."));
+        IngestDocument ingestDocument = processor.execute(new IngestDocument("my-index", "my-id", 1L, null, VersionType.INTERNAL,
+                document));
+
+        // sorted by their position, the offsets refer to the text each entity was found in
+        @SuppressWarnings("unchecked")
+        Map<String, List<Object>> offsets = ingestDocument.getFieldValue("entity_offsets", Map.class);
+        assertThat(offsets).containsOnlyKeys("type", "start", "end", "text", "probability");
+        assertThat(offsets.get("type")).containsExactly("names", "locations", "locations", "dates");
+        assertThat(offsets.get("start")).containsExactly(0, 0, 38, 0);
+        assertThat(offsets.get("end")).containsExactly(11, 6, 46, 9);
+        assertThat(offsets.get("text")).containsExactly(0, 1, 1, 2);
+        assertThat(offsets.get("probability")).hasSize(4).allMatch(probability -> (Double) probability > 0);
+    }
+
+    @Test
+    public void testThatCachedEntitiesAreCopiedOncePerDocument() throws Exception {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .put("ingest.opennlp.model.file.dates", "en-ner-dates.bin")
+                .put("ingest.opennlp.cache.size", "10mb")
+                .build();
+        try (OpenNlpService cachingService = new OpenNlpService(service.getConfigDirectory(), settings).start()) {
+            OpenNlpProcessor processor = new OpenNlpProcessor(cachingService, null, List.of("source_field"), "target_field",
+                    null, null, false, null, Set.of("names", "dates", "locations"), AnalysisOptions.DEFAULT, null, "description");
+
+            Map<String, Object> first = getIngestDocumentData(processor);
+            Map<String, Object> second = getIngestDocumentData(processor);
+            assertThat(cachingService.getCacheStats().getHits()).isEqualTo(3);
+
+            // every model is written once, as a list of its distinct values owned by the document
+            assertThat(first).containsOnlyKeys("names", "dates", "locations");
+            assertThat(second).isEqualTo(first);
+            for (String model : List.of("names", "dates", "locations")) {
+                assertThat(second.get(model)).isInstanceOf(ArrayList.class).isNotSameAs(first.get(model));
+            }
+            assertThatHasElements(second, "names", "Kobe Bryant", "Michael Jordan");
+
+            // modifying the entities of one document changes neither the cache nor other documents
+            getValues(first, "names").clear();
+            assertThatHasElements(getIngestDocumentData(processor), "names", "Kobe Bryant", "Michael Jordan");
+        }
+    }
+
+    @Test
+    public void testThatCachedDocumentsAllocateLittle() throws Exception {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean, "allocation counters are not available");
+        com.sun.management.ThreadMXBean allocationCounter = (com.sun.management.ThreadMXBean) threadMXBean;
+        assumeTrue(allocationCounter.isThreadAllocatedMemorySupported() && allocationCounter.isThreadAllocatedMemoryEnabled(),
+                "allocation counters are disabled");
+
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .put("ingest.opennlp.model.file.dates", "en-ner-dates.bin")
+                .put("ingest.opennlp.cache.size", "10mb")
+                .build();
+        try (OpenNlpService cachingService = new OpenNlpService(service.getConfigDirectory(), settings).start()) {
+            OpenNlpProcessor processor = new OpenNlpProcessor(cachingService, null, List.of("source_field"), "target_field",
+                    null, null, false, null, Set.of("names", "dates", "locations"), AnalysisOptions.DEFAULT, null, "description");
+
+            // the first document fills the cache, all others only assemble the result, which is what gets measured
+            for (int i = 0; i < 10_000; i++) {
+                processor.execute(getIngestDocument());
+            }
+            List<IngestDocument> documents = new ArrayList<>(1000);
+            for (int i = 0; i < 1000; i++) {
+                documents.add(getIngestDocument());
+            }
+
+            long threadId = Thread.currentThread().getId();
+            long allocatedBefore = allocationCounter.getThreadAllocatedBytes(threadId);
+            for (IngestDocument document : documents) {
+                processor.execute(document);
+            }
+            long allocatedPerDocument = (allocationCounter.getThreadAllocatedBytes(threadId) - allocatedBefore) / documents.size();
+
+            assertThatHasElements(getIngestDocumentData(documents.get(0)), "names", "Kobe Bryant", "Michael Jordan");
+            assertThat(allocatedPerDocument).isLessThan(ALLOCATED_BYTES_PER_CACHED_DOCUMENT);
+        }
+    }
+
+    @Test
+    public void testThatSourceFieldsMustBeStrings() {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", Arrays.asList("subject", 42));
+        assertThatThrownBy(() -> new OpenNlpProcessor.Factory(service).create(Collections.emptyMap(), null, "description", config))
+                .hasMessageContaining("must be a string or a list of strings");
+    }
+
+    @Test
+    public void testThatOnlyMaxContentLengthIsAnalysed() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", "source_field");
+        config.put("target_field", "target_field");
+        // the first two sentences, which do not contain any location
+        config.put("max_content_length", 127);
+
+        OpenNlpProcessor processor = new OpenNlpProcessor.Factory(service).create(Collections.emptyMap(), null, "description", config);
+        Map<String, Object> entityData = getIngestDocumentData(processor);
+
+        assertThatHasElements(entityData, "names", "Kobe Bryant", "Michael Jordan");
+        assertThat(entityData).doesNotContainKey("locations");
+        assertThat(entityData).doesNotContainKey("dates");
+    }
+
+    @Test
+    public void testWindowedAnalysis() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", "source_field");
+        config.put("target_field", "target_field");
+        config.put("window_size", 20);
+        config.put("window_overlap", 10);
+
+        OpenNlpProcessor processor = new OpenNlpProcessor.Factory(service).create(Collections.emptyMap(), null, "description", config);
+        Map<String, Object> entityData = getIngestDocumentData(processor);
+
+        assertThatHasElements(entityData, "names", "Kobe Bryant", "Michael Jordan");
+        assertThatHasElements(entityData, "dates", "Yesterday");
+        assertThatHasElements(entityData, "locations", "Munich", "New York");
+    }
+
+    @Test
+    public void testThatDocumentsExceedingTheTimeBudgetAreTagged() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", "source_field");
+        config.put("target_field", "target_field");
+        config.put("time_budget", "1nanos");
+
+        OpenNlpProcessor processor = new OpenNlpProcessor.Factory(service).create(Collections.emptyMap(), "budget", "description",
+                config);
+        IngestDocument ingestDocument = processor.execute(getIngestDocument());
+
+        // the budget runs out before the first model starts, but the document is still indexed
+        assertThat(ingestDocument.getFieldValue(OpenNlpProcessor.TRUNCATED_FIELD, Boolean.class)).isTrue();
+        assertThat(getIngestDocumentData(ingestDocument)).isEmpty();
+        assertThat(service.getMetrics().processor("budget").budgetExceeded()).isEqualTo(1);
+        assertThat(service.getMetrics().processor("budget").failures()).isEqualTo(0);
+
+        config = new HashMap<>();
+        config.put("field", "source_field");
+        config.put("time_budget", "1m");
+        processor = new OpenNlpProcessor.Factory(service).create(Collections.emptyMap(), null, "description", config);
+        assertThat(processor.execute(getIngestDocument()).hasField(OpenNlpProcessor.TRUNCATED_FIELD)).isFalse();
+    }
+
+    @Test
+    public void testThatTimeBudgetMustBeATime() {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", "source_field");
+        config.put("time_budget", "soon");
+
+        OpenNlpProcessor.Factory factory = new OpenNlpProcessor.Factory(service);
+        assertThatThrownBy(() -> factory.create(Collections.emptyMap(), null, "description", config))
+                .hasMessageContaining("time_budget");
+    }
+
+    @Test
+    public void testThatTokenizerMustBeKnown() {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", "source_field");
+        config.put("tokenizer", "letters");
+
+        OpenNlpProcessor.Factory factory = new OpenNlpProcessor.Factory(service);
+        assertThatThrownBy(() -> factory.create(Collections.emptyMap(), null, "description", config))
+                .hasMessageContaining("tokenizer");
+
+        // no tokenizer model is configured
+        Map<String, Object> modelConfig = new HashMap<>();
+        modelConfig.put("field", "source_field");
+        modelConfig.put("tokenizer", "model");
+        assertThatThrownBy(() -> factory.create(Collections.emptyMap(), null, "description", modelConfig))
+                .hasMessageContaining("ingest.opennlp.tokenizer.model.file");
+    }
+
+    @Test
+    public void testThatDictionariesRequireTheSimpleTokenizer(@TempDir Path tempDir) throws Exception {
+        Files.write(tempDir.resolve("players.txt"), List.of("Kobe Bryant", "Michael Jordan Jr."));
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.dictionary.file.players", "players.txt")
+                .build();
+        try (OpenNlpService dictionaryService = new OpenNlpService(tempDir, settings).start()) {
+            OpenNlpProcessor.Factory factory = new OpenNlpProcessor.Factory(dictionaryService);
+
+            Map<String, Object> config = new HashMap<>();
+            config.put("field", "source_field");
+            config.put("tokenizer", "whitespace");
+            assertThatThrownBy(() -> factory.create(Collections.emptyMap(), null, "description", config))
+                    .hasMessageContaining("must be [simple] to find the entries of dictionary [players], but was [whitespace]");
+
+            Map<String, Object> simpleConfig = new HashMap<>();
+            simpleConfig.put("field", "source_field");
+            simpleConfig.put("tokenizer", "simple");
+            assertThat(factory.create(Collections.emptyMap(), null, "description", simpleConfig)).isNotNull();
+        }
+    }
+
+    @Test
+    public void testThatWindowOverlapMustBeSmallerThanWindowSize() {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", "source_field");
+        config.put("window_size", 10);
+        config.put("window_overlap", 10);
+
+        OpenNlpProcessor.Factory factory = new OpenNlpProcessor.Factory(service);
+        assertThatThrownBy(() -> factory.create(Collections.emptyMap(), null, "description", config))
+                .hasMessageContaining("window_overlap");
+    }
+
+    @Test
+    public void testThatMetricsAreRecorded() throws Exception {
+        OpenNlpProcessor processor = new OpenNlpProcessor(service, "metrics", List.of("source_field"), "target_field",
+                "annotated_text", null, false, null, new HashSet<>(Arrays.asList("names", "locations")), AnalysisOptions.DEFAULT, null,
+                "description");
+        OpenNlpMetrics.ModelMetrics modelMetrics = service.getMetrics().model("names");
+        long modelDocuments = modelMetrics.documents();
+
+        processor.execute(getIngestDocument());
+        Map<String, Object> document = new HashMap<>();
+        document.put("source_field", 42);
+        IngestDocument ingestDocument = new IngestDocument("my-index", "my-id", 1L, null, VersionType.INTERNAL, document);
+        assertThatThrownBy(() -> processor.execute(ingestDocument)).isInstanceOf(IllegalArgumentException.class);
+
+        OpenNlpMetrics.ProcessorMetrics processorMetrics = service.getMetrics().processor("metrics");
+        assertThat(processorMetrics.documents()).isEqualTo(1);
+        assertThat(processorMetrics.failures()).isEqualTo(1);
+        assertThat(processorMetrics.entities()).isEqualTo(4);
+        assertThat(processorMetrics.tokens()).isGreaterThan(0);
+        assertThat(processorMetrics.tokenization().count()).isEqualTo(1);
+        assertThat(processorMetrics.annotatedText().count()).isEqualTo(1);
+        assertThat(processorMetrics.total().count()).isEqualTo(1);
+        assertThat(modelMetrics.documents()).isEqualTo(modelDocuments + 1);
+
+        try (XContentBuilder builder = XContentFactory.jsonBuilder()) {
+            builder.startObject();
+            service.getMetrics().toXContent(builder, ToXContent.EMPTY_PARAMS);
+            builder.endObject();
+            assertThat(Strings.toString(builder)).contains("\"metrics\":{\"documents\":1,\"tokens\":");
+        }
+    }
+
+    @Test
+    public void testThatModelsAreRoutedByLanguage() throws Exception {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .putList("ingest.opennlp.filter.names.languages", "eng")
+                .putList("ingest.opennlp.filter.locations.languages", "eng", "deu")
+                .build();
+        Path path = PathUtils.get(OpenNlpProcessorTests.class.getResource("/models/en-ner-persons.bin").toURI());
+        try (OpenNlpService routedService = new OpenNlpService(path.getParent(), settings).start()) {
+            OpenNlpProcessor processor = new OpenNlpProcessor(routedService, null, List.of("source_field"), "target_field",
+                    null, null, false, "language", new HashSet<>(Arrays.asList("names", "locations")), AnalysisOptions.DEFAULT, null,
+                    "description");
+
+            IngestDocument ingestDocument = getIngestDocument();
+            ingestDocument.setFieldValue("language", "deu");
+            Map<String, Object> entityData = getIngestDocumentData(processor.execute(ingestDocument));
+            assertThat(entityData).doesNotContainKey("names");
+            assertThatHasElements(entityData, "locations", "Munich", "New York");
+            assertThat(routedService.getMetrics().model("names").skipped()).isEqualTo(1);
+            assertThat(routedService.getMetrics().model("locations").skipped()).isEqualTo(0);
+
+            ingestDocument = getIngestDocument();
+            ingestDocument.setFieldValue("language", "eng");
+            entityData = getIngestDocumentData(processor.execute(ingestDocument));
+            assertThatHasElements(entityData, "names", "Kobe Bryant", "Michael Jordan");
+
+            // without a language detection model the language of documents without a language is not known, so all models run
+            entityData = getIngestDocumentData(processor.execute(getIngestDocument()));
+            assertThatHasElements(entityData, "names", "Kobe Bryant", "Michael Jordan");
+            assertThatHasElements(entityData, "locations", "Munich", "New York");
+        }
+    }
+
+    @Test
+    public void testThatDocumentsAreProcessedOnTheExecutor() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "opennlp-test"));
+        try {
+            OpenNlpProcessor processor = new OpenNlpProcessor(service, null, List.of("source_field"), "target_field", null, null,
+                    false, null, new HashSet<>(Arrays.asList("names", "locations")), AnalysisOptions.DEFAULT, executor, "description");
+            assertThat(processor.isAsync()).isTrue();
+            CompletableFuture<String> thread = new CompletableFuture<>();
+            CompletableFuture<IngestDocument> result = new CompletableFuture<>();
+            // pipelines only hand documents to the executor, if the processor says it is asynchronous
+            new CompoundProcessor(processor).execute(getIngestDocument(), (ingestDocument, e) -> {
+                thread.complete(Thread.currentThread().getName());
+                if (e != null) {
+                    result.completeExceptionally(e);
+                } else {
+                    result.complete(ingestDocument);
+                }
+            });
+
+            Map<String, Object> entityData = getIngestDocumentData(result.get(10, TimeUnit.SECONDS));
+            assertThatHasElements(entityData, "names", "Kobe Bryant", "Michael Jordan");
+            assertThatHasElements(entityData, "locations", "Munich", "New York");
+            assertThat(thread.get()).isEqualTo("opennlp-test");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testThatDocumentsAreRejectedIfTheQueueIsFull() throws Exception {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1));
+        CountDownLatch blocked = new CountDownLatch(1);
+        try {
+            // one task keeps the only thread busy, another one fills the queue
+            executor.execute(() -> {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            executor.execute(() -> {});
+
+            OpenNlpProcessor processor = new OpenNlpProcessor(service, "rejected", List.of("source_field"), "target_field", null,
+                    null, false, null, new HashSet<>(Arrays.asList("names")), AnalysisOptions.DEFAULT, executor, "description");
+            CompletableFuture<Exception> failure = new CompletableFuture<>();
+            processor.execute(getIngestDocument(), (ingestDocument, e) -> failure.complete(e));
+
+            assertThat(failure.get(10, TimeUnit.SECONDS)).isInstanceOf(RejectedExecutionException.class);
+            assertThat(service.getMetrics().processor("rejected").rejected()).isEqualTo(1);
+            assertThat(service.getMetrics().processor("rejected").documents()).isEqualTo(0);
+        } finally {
+            blocked.countDown();
+            executor.shutdownNow();
+        }
+    }
+
     private Map<String, Object> getIngestDocumentData(OpenNlpProcessor processor) throws Exception {
         IngestDocument ingestDocument = getIngestDocument();
         return getIngestDocumentData(processor.execute(ingestDocument));
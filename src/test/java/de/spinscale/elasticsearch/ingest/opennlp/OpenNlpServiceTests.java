@@ -17,12 +17,30 @@
 
 package de.spinscale.elasticsearch.ingest.opennlp;
 
+import opennlp.tools.tokenize.SimpleTokenizer;
+import opennlp.tools.util.Span;
+import org.assertj.core.api.InstanceOfAssertFactories;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentFactory;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 /*
  * Important: You need to run gradle from the command line first
@@ -52,4 +70,546 @@ public class OpenNlpServiceTests {
         assertThat(dateEntities.getEntityValues()).hasSize(1);
         assertThat(dateEntities.getEntityValues()).contains("Yesterday");
     }
+
+    @Test
+    public void testThatModelsCanBeLoadedLazily() {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.missing", "does-not-exist.bin")
+                .put("ingest.opennlp.model.loading.lazy", true)
+                .build();
+        OpenNlpService service = new OpenNlpService(Paths.get("src/test/resources/models/"), settings);
+        // the missing model file does not fail startup, as no model is read yet
+        service.start();
+
+        ExtractedEntities nameEntites = service.find("Kobe Bryant was one of the best basketball players of all time.", "names");
+        assertThat(nameEntites.getEntityValues()).containsExactly("Kobe Bryant");
+
+        assertThatThrownBy(() -> service.find("Kobe Bryant was one of the best basketball players of all time.", "missing"))
+                .isInstanceOf(ElasticsearchException.class);
+    }
+
+    @Test
+    public void testThatModelsCanBeLoadedInParallel() {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .put("ingest.opennlp.model.file.dates", "en-ner-dates.bin")
+                .put("ingest.opennlp.model.loading.threads", 3)
+                .build();
+        OpenNlpService service = new OpenNlpService(Paths.get("src/test/resources/models/"), settings);
+        service.start();
+
+        Map<String, ExtractedEntities> entities = service.find("Munich is really an awesome city, but New York is as well.",
+                List.of("names", "locations", "dates"));
+        assertThat(entities.get("locations").getEntityValues()).containsOnly("Munich", "New York");
+    }
+
+    @Test
+    public void testThatAllModelsShareOneTokenization() {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .put("ingest.opennlp.model.file.dates", "en-ner-dates.bin")
+                .build();
+        OpenNlpService service = new OpenNlpService(Paths.get("src/test/resources/models/"), settings);
+        service.start();
+
+        String content = "Kobe Bryant was one of the best basketball players of all times. Not even Michael Jordan has ever " +
+                "scored 81 points in one game. Munich is really an awesome city, but New York is as well. Yesterday has been the " +
+                "hottest day of the year.";
+        Map<String, ExtractedEntities> entities = service.find(content, Arrays.asList("names", "locations", "dates"));
+
+        assertThat(entities).containsOnlyKeys("names", "locations", "dates");
+        assertThat(entities.get("names").getEntityValues()).containsOnly("Kobe Bryant", "Michael Jordan");
+        assertThat(entities.get("locations").getEntityValues()).containsOnly("Munich", "New York");
+        assertThat(entities.get("dates").getEntityValues()).containsOnly("Yesterday");
+
+        ExtractedEntities names = entities.get("names");
+        assertThat(entities.get("locations").getTokenOffsets()).isSameAs(names.getTokenOffsets());
+        assertThat(entities.get("dates").getTokenOffsets()).isSameAs(names.getTokenOffsets());
+        assertThat(content.substring(names.getTokenOffsets()[0], names.getTokenOffsets()[1])).isEqualTo("Kobe");
+    }
+
+    @Test
+    public void testThatSentencesAreProcessedOneByOne() {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .put("ingest.opennlp.model.file.dates", "en-ner-dates.bin")
+                .put("ingest.opennlp.sentence.model.file", "en-sent.bin")
+                .build();
+        OpenNlpService service = new OpenNlpService(Paths.get("src/test/resources/models/"), settings);
+        service.start();
+
+        String content = "Kobe Bryant was one of the best basketball players of all times. Not even Michael Jordan has ever " +
+                "scored 81 points in one game. Munich is really an awesome city, but New York is as well. Yesterday has been the " +
+                "hottest day of the year.";
+        Map<String, ExtractedEntities> entities = service.find(content, Arrays.asList("names", "locations", "dates"));
+
+        assertThat(entities.get("names").getEntityValues()).containsOnly("Kobe Bryant", "Michael Jordan");
+        assertThat(entities.get("locations").getEntityValues()).containsOnly("Munich", "New York");
+        assertThat(entities.get("dates").getEntityValues()).containsOnly("Yesterday");
+
+        // spans of later sentences must point to the tokens of the whole document
+        ExtractedEntities locations = entities.get("locations");
+        for (Span span : locations.getSpans()) {
+            int start = OffsetTokenizer.start(locations.getTokenOffsets(), span.getStart());
+            int end = OffsetTokenizer.end(locations.getTokenOffsets(), span.getEnd() - 1);
+            assertThat(content.substring(start, end)).isIn("Munich", "New York");
+        }
+    }
+
+    @Test
+    public void testThatEntitiesInOverlappingWindowsAreFoundOnce() {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .build();
+        OpenNlpService service = new OpenNlpService(Paths.get("src/test/resources/models/"), settings);
+        service.start();
+
+        String content = "Munich is really an awesome city, but New York is as well.";
+        AnalysisOptions options = new AnalysisOptions(Integer.MAX_VALUE, Integer.MAX_VALUE, 8, 6, TimeValue.ZERO,
+                OffsetTokenizer.SIMPLE);
+        ExtractedEntities locations = service.find(content, Collections.singletonList("locations"), options).get("locations");
+
+        assertThat(locations.getEntityValues()).containsOnly("Munich", "New York");
+        assertThat(locations.getSpans()).hasSize(2);
+    }
+
+    @Test
+    public void testThatModelsCanRunInParallel() {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .put("ingest.opennlp.model.file.dates", "en-ner-dates.bin")
+                .put("ingest.opennlp.parallel.threads", 2)
+                .put("ingest.opennlp.parallel.min_content_length", 0)
+                .build();
+        try (OpenNlpService service = new OpenNlpService(Paths.get("src/test/resources/models/"), settings).start()) {
+            String content = "Kobe Bryant was one of the best basketball players of all times. Not even Michael Jordan has ever " +
+                    "scored 81 points in one game. Munich is really an awesome city, but New York is as well. Yesterday has been " +
+                    "the hottest day of the year.";
+
+            for (int i = 0; i < 10; i++) {
+                Map<String, ExtractedEntities> entities = service.find(content, Arrays.asList("names", "locations", "dates"));
+
+                assertThat(entities.keySet()).containsExactly("names", "locations", "dates");
+                assertThat(entities.get("names").getEntityValues()).containsOnly("Kobe Bryant", "Michael Jordan");
+                assertThat(entities.get("locations").getEntityValues()).containsOnly("Munich", "New York");
+                assertThat(entities.get("dates").getEntityValues()).containsOnly("Yesterday");
+            }
+        }
+    }
+
+    @Test
+    public void testThatDuplicateContentIsServedFromCache() throws Exception {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .put("ingest.opennlp.cache.size", "10mb")
+                .build();
+        OpenNlpService service = new OpenNlpService(Paths.get("src/test/resources/models/"), settings);
+        service.start();
+
+        String content = "Kobe Bryant was one of the best basketball players of all times. Munich is really an awesome city.";
+        Map<String, ExtractedEntities> first = service.find(content, Arrays.asList("names", "locations"));
+        assertThat(service.getCacheStats().getMisses()).isEqualTo(2);
+        assertThat(service.getCacheStats().getHits()).isEqualTo(0);
+
+        Map<String, ExtractedEntities> second = service.find(content, Arrays.asList("names", "locations"));
+        assertThat(service.getCacheStats().getHits()).isEqualTo(2);
+        assertThat(second.get("names")).isSameAs(first.get("names"));
+        assertThat(second.get("locations")).isSameAs(first.get("locations"));
+
+        // different options tokenize differently, so they must not share cache entries
+        AnalysisOptions options = new AnalysisOptions(20, Integer.MAX_VALUE, 0, 0, TimeValue.ZERO, OffsetTokenizer.SIMPLE);
+        Map<String, ExtractedEntities> limited = service.find(content, Collections.singletonList("locations"), options);
+        assertThat(limited.get("locations").getEntityValues()).isEmpty();
+        assertThat(service.getCacheStats().getMisses()).isEqualTo(3);
+
+        try (XContentBuilder builder = XContentFactory.jsonBuilder()) {
+            RestOpenNlpStatsAction.toXContent(builder, "node", service);
+            assertThat(Strings.toString(builder)).endsWith("\"cache\":{\"hits\":2,\"misses\":3,\"evictions\":0}}");
+        }
+    }
+
+    @Test
+    public void testThatTruncatedEntitiesAreNotCached() {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .put("ingest.opennlp.cache.size", "10mb")
+                .build();
+        OpenNlpService service = new OpenNlpService(Paths.get("src/test/resources/models/"), settings);
+        service.start();
+
+        String content = "Kobe Bryant was one of the best basketball players of all times. Munich is really an awesome city.";
+        AnalysisOptions options = new AnalysisOptions(Integer.MAX_VALUE, Integer.MAX_VALUE, 0, 0, TimeValue.timeValueNanos(1),
+                OffsetTokenizer.SIMPLE);
+        Map<String, ExtractedEntities> truncated = service.find(content, Arrays.asList("names", "locations"), options);
+        assertThat(truncated.values()).allMatch(ExtractedEntities::isTruncated).allMatch(entities -> entities.getSpans().length == 0);
+
+        service.find(content, Arrays.asList("names", "locations"), options);
+        assertThat(service.getCacheStats().getMisses()).isEqualTo(4);
+        assertThat(service.getCacheStats().getHits()).isEqualTo(0);
+
+        options = new AnalysisOptions(Integer.MAX_VALUE, Integer.MAX_VALUE, 0, 0, TimeValue.timeValueMinutes(1),
+                OffsetTokenizer.SIMPLE);
+        Map<String, ExtractedEntities> complete = service.find(content, Arrays.asList("names", "locations"), options);
+        assertThat(complete.values()).noneMatch(ExtractedEntities::isTruncated);
+        assertThat(complete.get("names").getEntityValues()).containsOnly("Kobe Bryant");
+    }
+
+    @Test
+    public void testThatModelsCanBeReloaded(@TempDir Path tempDir) throws Exception {
+        Path models = Paths.get("src/test/resources/models/");
+        Path modelFile = tempDir.resolve("model.bin");
+        Files.copy(models.resolve("en-ner-locations.bin"), modelFile);
+
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.entities", "model.bin")
+                .put("ingest.opennlp.cache.size", "10mb")
+                .build();
+        OpenNlpService service = new OpenNlpService(tempDir, settings);
+        service.start();
+
+        String content = "Kobe Bryant was one of the best basketball players of all times. Munich is really an awesome city.";
+        assertThat(service.find(content, "entities").getEntityValues()).containsOnly("Munich");
+
+        Files.copy(models.resolve("en-ner-persons.bin"), modelFile, StandardCopyOption.REPLACE_EXISTING);
+        service.reload(modelFile);
+        assertThat(service.find(content, "entities").getEntityValues()).containsOnly("Kobe Bryant");
+
+        // a broken or incompletely written file keeps the previous model
+        Files.writeString(modelFile, "not a model");
+        service.reload(modelFile);
+        assertThat(service.find(content, "entities").getEntityValues()).containsOnly("Kobe Bryant");
+    }
+
+    @Test
+    public void testThatCompiledModelsFindTheSameEntities(@TempDir Path tempDir) throws Exception {
+        Path models = Paths.get("src/test/resources/models/");
+        for (String model : List.of("en-ner-persons", "en-ner-locations", "en-ner-dates")) {
+            Files.copy(models.resolve(model + ".bin"), tempDir.resolve(model + ".bin"));
+            MappedNameFinderModel.compile(tempDir.resolve(model + ".bin"), tempDir.resolve(model + ".mmap"));
+        }
+
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .put("ingest.opennlp.model.file.dates", "en-ner-dates.bin")
+                .put("ingest.opennlp.model.file.compiled_names", "en-ner-persons.mmap")
+                .put("ingest.opennlp.model.file.compiled_locations", "en-ner-locations.mmap")
+                .put("ingest.opennlp.model.file.compiled_dates", "en-ner-dates.mmap")
+                .build();
+        OpenNlpService service = new OpenNlpService(tempDir, settings);
+        service.start();
+
+        String content = "Kobe Bryant was one of the best basketball players of all times. Not even Michael Jordan has ever " +
+                "scored 81 points in one game. Munich is really an awesome city, but New York is as well. Yesterday has been " +
+                "the hottest day of the year.";
+        for (String field : List.of("names", "locations", "dates")) {
+            ExtractedEntities expected = service.find(content, field);
+            ExtractedEntities actual = service.find(content, "compiled_" + field);
+            assertThat(actual.getSpans()).containsExactly(expected.getSpans());
+            assertThat(actual.getEntityValues()).isNotEmpty();
+        }
+    }
+
+    @Test
+    public void testThatModelsCompiledOnLoadFindTheSameEntities() throws Exception {
+        Settings.Builder settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .put("ingest.opennlp.model.file.dates", "en-ner-dates.bin");
+        OpenNlpService service = new OpenNlpService(Paths.get("src/test/resources/models/"), settings.build()).start();
+        OpenNlpService compiledService = new OpenNlpService(Paths.get("src/test/resources/models/"),
+                settings.put("ingest.opennlp.model.compile_on_load", true).build()).start();
+
+        String content = "Kobe Bryant was one of the best basketball players of all times. Not even Michael Jordan has ever " +
+                "scored 81 points in one game. Munich is really an awesome city, but New York is as well. Yesterday has been " +
+                "the hottest day of the year.";
+        for (String field : List.of("names", "locations", "dates")) {
+            Span[] expected = service.find(content, field).getSpans();
+            Span[] actual = compiledService.find(content, field).getSpans();
+            assertThat(actual).isNotEmpty().containsExactly(expected);
+            for (int i = 0; i < expected.length; i++) {
+                assertThat(actual[i].getProb()).isEqualTo(expected[i].getProb());
+            }
+        }
+
+        try (InputStream is = Files.newInputStream(Paths.get("src/test/resources/models/en-ner-persons.bin"))) {
+            assertThat(new CompiledNameFinderModel(is).isCompiled()).isTrue();
+        }
+    }
+
+    @Test
+    public void testThatDictionariesFindTheirEntries(@TempDir Path tempDir) throws Exception {
+        Files.write(tempDir.resolve("players.txt"), List.of("# basketball players", "Kobe Bryant", "Michael Jordan", "",
+                "Michael Jordan Jr.", "Jordan", "Kobe Bryant"));
+        Files.copy(Paths.get("src/test/resources/models/en-ner-locations.bin"), tempDir.resolve("en-ner-locations.bin"));
+
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.dictionary.file.players", "players.txt")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .build();
+        OpenNlpService service = new OpenNlpService(tempDir, settings);
+        service.start();
+        assertThat(service.getModels()).containsOnly("players", "locations");
+
+        String content = "Kobe Bryant was one of the best basketball players of all times. Not even Michael Jordan has ever " +
+                "scored 81 points in one game, neither did Jordan. Munich is really an awesome city.";
+        Map<String, ExtractedEntities> entities = service.find(content, List.of("players", "locations"));
+        ExtractedEntities players = entities.get("players");
+        // the longest entry wins, the shorter one within is not returned
+        assertThat(players.getEntityValues()).containsOnly("Kobe Bryant", "Michael Jordan", "Jordan");
+        assertThat(players.getSpans()).hasSize(3).allMatch(span -> span.getType().equals("players"));
+
+        assertThat(OpenNlpService.createAnnotatedText(content, entities.values()))
+                .startsWith("[Kobe Bryant](Players_Kobe Bryant) was one of")
+                .contains("[Michael Jordan](Players_Michael Jordan) has ever", "neither did [Jordan](Players_Jordan).")
+                .endsWith("[Munich](Location_Munich) is really an awesome city.");
+    }
+
+    @Test
+    public void testThatDictionariesAndModelsNeedDistinctNames() {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.dictionary.file.players", "players.txt")
+                .put("ingest.opennlp.model.file.players", "en-ner-persons.bin")
+                .build();
+        assertThatThrownBy(() -> new OpenNlpService(Paths.get("src/test/resources/models/"), settings))
+                .hasMessageContaining("dictionary [players] has the same name as a model");
+    }
+
+    @Test
+    public void testThatPatternsFindWholeTokens(@TempDir Path tempDir) throws Exception {
+        Files.write(tempDir.resolve("dates.txt"), List.of("# ISO dates and times", "\\d{4}-\\d{2}-\\d{2}(?:T\\d{2}:\\d{2})?",
+                "", "\\d{2}:\\d{2}"));
+        Files.copy(Paths.get("src/test/resources/models/en-ner-locations.bin"), tempDir.resolve("en-ner-locations.bin"));
+
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.pattern.file.timestamps", "dates.txt")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .build();
+        OpenNlpService service = new OpenNlpService(tempDir, settings);
+        service.start();
+        assertThat(service.getModels()).containsOnly("timestamps", "locations");
+
+        String content = "Munich is really an awesome city, but New York is as well. Opened 2016-05-01T10:30, order 12016-05-01.";
+        Map<String, ExtractedEntities> entities = service.find(content, List.of("timestamps", "locations"));
+        ExtractedEntities timestamps = entities.get("timestamps");
+        // the match within the order number does not start at a token
+        assertThat(timestamps.getEntityValues()).containsOnly("2016-05-01T10:30");
+        assertThat(timestamps.getSpans()).hasSize(1).allMatch(span -> span.getType().equals("timestamps"));
+
+        assertThat(OpenNlpService.createAnnotatedText(content, entities.values()))
+                .startsWith("[Munich](Location_Munich) is really")
+                .endsWith("Opened [2016-05-01T10:30](Timestamps_2016-05-01T10:30), order 12016-05-01.");
+    }
+
+    @Test
+    public void testThatPatternsWithBackReferencesAreRejected(@TempDir Path tempDir) throws Exception {
+        Files.write(tempDir.resolve("repeated.txt"), List.of("\\d{4}", "(\\w+) \\1"));
+        Files.write(tempDir.resolve("escaped.txt"), List.of("\\\\1", "\\Q\\1\\E"));
+
+        assertThatThrownBy(() -> PatternNameFinder.load(tempDir.resolve("repeated.txt"), "repeated"))
+                .hasMessageContaining("pattern in line [2]")
+                .hasMessageContaining("contains a back reference");
+        // an escaped backslash or a quoted section is no back reference
+        assertThat(PatternNameFinder.load(tempDir.resolve("escaped.txt"), "escaped").getPatternCount()).isEqualTo(2);
+
+        Files.write(tempDir.resolve("named.txt"), List.of("(?<year>\\d{4})", "(?<year>\\d{2})"));
+        assertThatThrownBy(() -> PatternNameFinder.load(tempDir.resolve("named.txt"), "named"))
+                .hasMessageContaining("named groups must have different names");
+    }
+
+    @Test
+    public void testThatPatternsNeedDistinctNames() {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.pattern.file.dates", "dates.txt")
+                .put("ingest.opennlp.model.file.dates", "en-ner-dates.bin")
+                .build();
+        assertThatThrownBy(() -> new OpenNlpService(Paths.get("src/test/resources/models/"), settings))
+                .hasMessageContaining("pattern [dates] has the same name as a model or dictionary");
+    }
+
+    @Test
+    public void testThatFilteredModelsSkipDocuments() {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .put("ingest.opennlp.filter.names.capitalized", true)
+                .put("ingest.opennlp.filter.locations.min_tokens", 5)
+                .put("ingest.opennlp.filter.locations.min_letter_ratio", 0.5)
+                .build();
+        OpenNlpService service = new OpenNlpService(Paths.get("src/test/resources/models/"), settings);
+        service.start();
+
+        assertThat(service.find("2022-10-12 11:23:45 status=200 bytes=3412", List.of("names", "locations")).values())
+                .allMatch(entities -> entities.getSpans().length == 0);
+        assertThat(service.find("12 34 56 78 Munich 90", "locations").getSpans()).isEmpty();
+        assertThat(service.find("Kobe Bryant was one of the best basketball players of all time.", "names").getEntityValues())
+                .containsOnly("Kobe Bryant");
+        assertThat(service.find("Munich is really an awesome city, but New York is as well.", "locations").getEntityValues())
+                .containsOnly("Munich", "New York");
+
+        OpenNlpMetrics.ModelMetrics names = service.getMetrics().model("names");
+        assertThat(names.skipped()).isEqualTo(1);
+        assertThat(names.documents()).isEqualTo(1);
+        OpenNlpMetrics.ModelMetrics locations = service.getMetrics().model("locations");
+        assertThat(locations.skipped()).isEqualTo(2);
+        assertThat(locations.documents()).isEqualTo(1);
+    }
+
+    @Test
+    public void testThatFiltersNeedAModel() {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.filter.persons.min_tokens", 5)
+                .build();
+        assertThatThrownBy(() -> new OpenNlpService(Paths.get("src/test/resources/models/"), settings))
+                .hasMessageContaining("filter configured for unknown model [persons]");
+    }
+
+    @Test
+    public void testThatOffsetTokenizerFindsTheSameTokensAsTheSimpleTokenizer() {
+        List<String> contents = List.of("", "   ", "Munich is nice.", "  U.S.-based, 42km... \"quoted\"\n\nNew\u00A0York!!",
+                "a1b2 ...--äöü ÄÖÜ");
+        for (String content : contents) {
+            Span[] expected = SimpleTokenizer.INSTANCE.tokenizePos(content);
+            int[] tokenOffsets = OffsetTokenizer.simple(content, Integer.MAX_VALUE);
+            assertThat(OffsetTokenizer.count(tokenOffsets)).isEqualTo(expected.length);
+            for (int i = 0; i < expected.length; i++) {
+                assertThat(OffsetTokenizer.start(tokenOffsets, i)).isEqualTo(expected[i].getStart());
+                assertThat(OffsetTokenizer.end(tokenOffsets, i)).isEqualTo(expected[i].getEnd());
+            }
+        }
+
+        assertThat(OffsetTokenizer.simple("Munich is nice.", 2)).containsExactly(0, 6, 7, 9);
+        assertThat(OffsetTokenizer.whitespace("  Munich, is nice.", Integer.MAX_VALUE)).containsExactly(2, 9, 10, 12, 13, 18);
+        assertThat(OffsetTokenizer.tokens("  Munich, is nice.", new int[] { 2, 9, 13, 18 })).containsExactly("Munich,", "nice.");
+    }
+
+    @Test
+    public void testThatTokenizerCanBeChosen() {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .put("ingest.opennlp.tokenizer.model.file", "en-token.bin")
+                .build();
+        OpenNlpService service = new OpenNlpService(Paths.get("src/test/resources/models/"), settings).start();
+        String content = "Munich is really an awesome city, but New York is as well.";
+
+        ExtractedEntities simple = service.find(content, List.of("locations"), options(OffsetTokenizer.SIMPLE)).get("locations");
+        assertThat(simple.getTokenCount()).isEqualTo(14);
+        assertThat(simple.getEntityValues()).containsOnly("Munich", "New York");
+
+        // the punctuation stays part of the words
+        ExtractedEntities whitespace = service.find(content, List.of("locations"), options(OffsetTokenizer.WHITESPACE))
+                .get("locations");
+        assertThat(whitespace.getTokenCount()).isEqualTo(12);
+
+        ExtractedEntities model = service.find(content, List.of("locations"), options(OffsetTokenizer.MODEL)).get("locations");
+        assertThat(model.getTokenCount()).isEqualTo(14);
+        assertThat(model.getEntityValues()).containsOnly("Munich", "New York");
+    }
+
+    private static AnalysisOptions options(String tokenizer) {
+        return new AnalysisOptions(Integer.MAX_VALUE, Integer.MAX_VALUE, 0, 0, TimeValue.ZERO, tokenizer);
+    }
+
+    @Test
+    public void testAnnotatedTextKeepsContentBetweenEntities() {
+        String content = "  Munich is nice.\n\nNew  York as well  ";
+        int[] tokenOffsets = OffsetTokenizer.simple(content, Integer.MAX_VALUE);
+        Span[] spans = new Span[] { new Span(4, 6, "location"), new Span(0, 1, "location") };
+
+        ExtractedEntities entities = new ExtractedEntities(content, tokenOffsets, spans);
+        String annotatedText = OpenNlpService.createAnnotatedText(content, Collections.singletonList(entities));
+
+        assertThat(annotatedText).isEqualTo("  [Munich](Location_Munich) is nice.\n\n[New  York](Location_New  York) as well  ");
+        // the values join the tokens of an entity with a single space, like the tokens handed to the models
+        assertThat(entities.getEntityValues()).containsOnly("Munich", "New York");
+    }
+
+    @Test
+    public void testEntityOffsetsAreSortedByStart() {
+        String content = "  Munich is nice.\n\nNew  York as well  ";
+        int[] tokenOffsets = OffsetTokenizer.simple(content, Integer.MAX_VALUE);
+        Span[] spans = new Span[] { new Span(4, 6, "location"), new Span(0, 1, "location") };
+
+        Map<String, List<?>> offsets = OpenNlpService.createEntityOffsets(new int[] { 0 },
+                Map.of("locations", new ExtractedEntities(content, tokenOffsets, spans)), false);
+
+        // a single text needs no text index, and probabilities are only added on request
+        assertThat(offsets).containsOnlyKeys("type", "start", "end");
+        assertThat(offsets.get("type")).asInstanceOf(InstanceOfAssertFactories.LIST).containsExactly("locations", "locations");
+        assertThat(offsets.get("start")).asInstanceOf(InstanceOfAssertFactories.LIST).containsExactly(2, 19);
+        assertThat(offsets.get("end")).asInstanceOf(InstanceOfAssertFactories.LIST).containsExactly(8, 28);
+    }
+
+    @Test
+    public void testAnnotatedTextOfManyEntities() {
+        String content = "Munich is nice. ".repeat(10_000);
+        int[] tokenOffsets = OffsetTokenizer.simple(content, Integer.MAX_VALUE);
+        Span[] spans = new Span[10_000];
+        for (int i = 0; i < spans.length; i++) {
+            spans[i] = new Span(i * 4, i * 4 + 1, "location");
+        }
+
+        String annotatedText = OpenNlpService.createAnnotatedText(content,
+                Collections.singletonList(new ExtractedEntities(content, tokenOffsets, spans)));
+
+        assertThat(annotatedText).isEqualTo(content.replace("Munich", "[Munich](Location_Munich)"));
+    }
+
+    @Test
+    public void testThatWarmUpDoesNotCountAsDocuments() {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .put("ingest.opennlp.cache.size", "10mb")
+                .build();
+        OpenNlpService service = new OpenNlpService(Paths.get("src/test/resources/models/"), settings).start();
+
+        assertThat(service.warmUp(WarmUpCorpus.synthetic(), TimeValue.timeValueMinutes(1), 300)).isEqualTo(300);
+        assertThat(service.warmUp(WarmUpCorpus.synthetic(), TimeValue.ZERO, 300)).isEqualTo(0);
+        assertThat(service.getMetrics().model("names").documents()).isEqualTo(0);
+        assertThat(service.getMetrics().model("locations").documents()).isEqualTo(0);
+
+        // the warm-up corpus does not end up in the cache either
+        String content = WarmUpCorpus.synthetic().get(0);
+        service.find(content, "names");
+        assertThat(service.getMetrics().model("names").documents()).isEqualTo(1);
+    }
+
+    @Test
+    public void testThatModelsAreWarmedUpInTheBackground(@TempDir Path tempDir) throws Exception {
+        Files.copy(Paths.get("src/test/resources/models/en-ner-locations.bin"), tempDir.resolve("en-ner-locations.bin"));
+        Files.write(tempDir.resolve("corpus.txt"), List.of("Munich is really an awesome city, but New York is as well.", "",
+                "Yesterday has been the hottest day of the year."));
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .put("ingest.opennlp.warmup.enabled", true)
+                .put("ingest.opennlp.warmup.corpus.file", "corpus.txt")
+                .put("ingest.opennlp.warmup.max_documents", 50)
+                .build();
+        OpenNlpService service = new OpenNlpService(tempDir, settings).start();
+
+        // documents are processed while the models are warmed up
+        assertThat(service.find("Munich is really an awesome city, but New York is as well.", "locations").getEntityValues())
+                .containsExactly("Munich", "New York");
+
+        Thread warmUpThread = service.getWarmUpThread();
+        assertThat(warmUpThread).isNotNull();
+        warmUpThread.join(30_000);
+        assertThat(warmUpThread.isAlive()).isFalse();
+        assertThat(service.getMetrics().model("locations").documents()).isEqualTo(1);
+        service.close();
+
+        Files.write(tempDir.resolve("corpus.txt"), List.of(""));
+        assertThatThrownBy(() -> new OpenNlpService(tempDir, settings).start())
+                .isInstanceOf(ElasticsearchException.class)
+                .hasMessageContaining("warm-up corpus [corpus.txt] does not contain any documents");
+    }
 }
@@ -30,6 +30,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -38,6 +39,7 @@ public class OpenNlpThreadSafeTests {
     private static final Settings settings = Settings.builder()
                 .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
                 .build();
+    private static final String[] CITIES = new String[] {"Munich", "Stockholm", "Madrid", "San Francisco", "Cologne", "Paris", "London", "Amsterdam"};
     private OpenNlpService service;
     private ExecutorService executorService;
 
@@ -55,21 +57,41 @@ public class OpenNlpThreadSafeTests {
 
     @Test
     public void testThatOpenNlpServiceIsThreadSafe() throws Exception {
-        int runs = 1000;
+        findConcurrently(1000, i -> CITIES[1000 % CITIES.length]);
+    }
+
+    @Test
+    public void testThatNameFindersAreReusedPerThread() throws Exception {
+        findConcurrently(1000, i -> CITIES[i % CITIES.length]);
+
+        // one name finder per thread and model, instead of one per document
+        assertThat(service.getCreatedNameFinderCount()).isLessThanOrEqualTo(10);
+    }
+
+    @Test
+    public void testThatAdaptiveDataIsClearedBetweenDocuments() {
+        String text = "Munich is really an awesome city, but others are as well.";
+        ExtractedEntities first = service.find(text, "locations");
+        for (int i = 0; i < 100; i++) {
+            service.find("Stockholm is really an awesome city, but Madrid is as well.", "locations");
+        }
+        ExtractedEntities second = service.find(text, "locations");
+
+        assertThat(second.getEntityValues()).isEqualTo(first.getEntityValues());
+        assertThat(service.getCreatedNameFinderCount()).isEqualTo(1);
+    }
+
+    private void findConcurrently(int runs, IntFunction<String> cityForRun) throws InterruptedException {
         CountDownLatch latch = new CountDownLatch(runs);
         List<OpennlpRunnable> runnables = new ArrayList<>();
 
-        String[] cities = new String[] {"Munich", "Stockholm", "Madrid", "San Francisco", "Cologne", "Paris", "London", "Amsterdam"};
-
         for (int i = 0; i < runs; i++) {
-            String city = cities[runs % cities.length];
-
-            OpennlpRunnable runnable = new OpennlpRunnable(i, city, latch);
+            OpennlpRunnable runnable = new OpennlpRunnable(i, cityForRun.apply(i), latch);
             runnables.add(runnable);
             executorService.submit(runnable);
         }
 
-        latch.await(30, TimeUnit.SECONDS);
+        assertThat(latch.await(30, TimeUnit.SECONDS)).as("all runs finished in time").isTrue();
         for (OpennlpRunnable runnable : runnables) {
             runnable.assertResultIsCorrect();
         }